@@ -0,0 +1,326 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * The isolated class loaders of the whole process, so that service loaders for the same isolated root - two services from one root, or a loader
+ * that is rebuilt - get the same class loader rather than loading every class again.  A loader is identified by its location, its jars, the
+ * class loader above it and its filters.
+ *
+ * Loaders are reference counted.  Each acquire has to be matched by a release, and the last release closes the loader, releases its jars and
+ * hands it to the leak detector.  The registry itself only refers to loaders weakly, so one whose users dropped it without closing is forgotten
+ * (and its jars released) once it has been collected, rather than being kept for the life of the process.
+ *
+ * Loaders are created outside the registry's lock, the same way Memoizer computes its values: the first caller for a key runs the factory, and
+ * anyone else asking for that key waits for it while callers for other keys go ahead.
+ */
+final class ClassLoaderRegistry
+{
+	static final ClassLoaderRegistry INSTANCE = new ClassLoaderRegistry();
+
+	interface Factory
+	{
+		URLClassLoader create();
+	}
+
+	private final Map<Key, Registration> registrations = new HashMap<Key, Registration>();
+	// class loaders don't override equals, so this is by identity
+	private final Map<URLClassLoader, Registration> byClassLoader = new WeakHashMap<URLClassLoader, Registration>();
+	private final ReferenceQueue<URLClassLoader> collected = new ReferenceQueue<URLClassLoader>();
+
+	URLClassLoader acquire(final Key key, final Factory factory)
+	{
+		Registration registration;
+		FutureTask<URLClassLoader> creation;
+		boolean creator = false;
+		synchronized (this)
+		{
+			expunge();
+			Registration existing = registrations.get(key);
+			if (existing != null && existing.reference != null)
+			{
+				URLClassLoader classLoader = existing.reference.get();
+				if (classLoader != null)
+				{
+					existing.count++;
+					return classLoader;
+				}
+			}
+			if (existing == null || existing.reference != null)
+			{
+				// nothing registered yet, or only a loader that has been collected and not yet expunged
+				if (existing != null)
+				{
+					forget(existing);
+				}
+				existing = new Registration(key, factory);
+				registrations.put(key, existing);
+				creator = true;
+			}
+			existing.count++;
+			registration = existing;
+			creation = existing.creation;
+		}
+		if (creator)
+		{
+			creation.run();
+		}
+		return await(registration, creation);
+	}
+
+	private URLClassLoader await(Registration registration, FutureTask<URLClassLoader> creation)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return creation.get();
+				}
+				catch (InterruptedException e)
+				{
+					// the loader is as good as made, and acquire can't fail with an interruption
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			synchronized (this)
+			{
+				if (registrations.get(registration.key) == registration)
+				{
+					registrations.remove(registration.key);
+				}
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Failed to create the class loader for " + registration.key, cause);
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Releases a loader, closing it if that was its last user.  Failing to close still unregisters it.
+	 */
+	void release(URLClassLoader classLoader) throws IOException
+	{
+		synchronized (this)
+		{
+			expunge();
+			Registration registration = byClassLoader.get(classLoader);
+			if (registration == null || --registration.count > 0)
+			{
+				return;
+			}
+			registrations.remove(registration.key);
+			byClassLoader.remove(classLoader);
+			registration.released = true;
+		}
+		try
+		{
+			// URLClassLoader is only Closeable from Java 7 on
+			if (classLoader instanceof Closeable)
+			{
+				((Closeable) classLoader).close();
+			}
+		}
+		finally
+		{
+			discard(classLoader.getURLs());
+			LeakDetector.watch(classLoader);
+		}
+	}
+
+	synchronized int size()
+	{
+		expunge();
+		return registrations.size();
+	}
+
+	/*
+	 * Called with the registry locked.
+	 */
+	private void expunge()
+	{
+		for (Reference<? extends URLClassLoader> reference = collected.poll(); reference != null; reference = collected.poll())
+		{
+			forget(((LoaderReference) reference).registration);
+		}
+	}
+
+	/*
+	 * Called with the registry locked, for a registration whose loader has been collected.  A loader that was never released still has its jars
+	 * retained, so they are released here - whether or not acquire already replaced the registration.
+	 */
+	private void forget(Registration registration)
+	{
+		if (registrations.get(registration.key) == registration)
+		{
+			registrations.remove(registration.key);
+		}
+		if (!registration.released)
+		{
+			registration.released = true;
+			discard(registration.jarUrls);
+		}
+	}
+
+	private static void discard(URL[] jarUrls)
+	{
+		for (URL jarUrl : jarUrls)
+		{
+			HermanUrlStreamHandler.discard(jarUrl);
+		}
+	}
+
+	private final class Registration
+	{
+		private final Key key;
+		// guarded by the registry.  Until the loader has been created there is only the task creating it, which would keep it alive afterwards.
+		private FutureTask<URLClassLoader> creation;
+		private LoaderReference reference;
+		private URL[] jarUrls;
+		private int count;
+		private boolean released;
+
+		private Registration(final Key key, final Factory factory)
+		{
+			this.key = key;
+			this.creation = new FutureTask<URLClassLoader>(new Callable<URLClassLoader>()
+			{
+				@Override
+				public URLClassLoader call()
+				{
+					URLClassLoader classLoader = factory.create();
+					// published before anyone waiting gets the loader, so that they can release it
+					synchronized (ClassLoaderRegistry.this)
+					{
+						reference = new LoaderReference(classLoader, Registration.this, collected);
+						jarUrls = classLoader.getURLs();
+						creation = null;
+						byClassLoader.put(classLoader, Registration.this);
+					}
+					return classLoader;
+				}
+			});
+		}
+	}
+
+	private static final class LoaderReference extends WeakReference<URLClassLoader>
+	{
+		private final Registration registration;
+
+		private LoaderReference(final URLClassLoader classLoader, final Registration registration, final ReferenceQueue<URLClassLoader> queue)
+		{
+			super(classLoader, queue);
+			this.registration = registration;
+		}
+	}
+
+	static final class Key
+	{
+		private final String location;
+		private final List<String> jars;
+		// weak, so that registrations don't keep the caller's class loader alive either
+		private final WeakReference<ClassLoader> parent;
+		private final int parentHash;
+		private final List<String> includes;
+		private final List<String> excludes;
+
+		Key(final String location, final List<URL> jars, final ClassLoader parent, final String[] includes, final String[] excludes)
+		{
+			this.location = location;
+			List<String> jarNames = new ArrayList<String>(jars.size());
+			for (URL jar : jars)
+			{
+				jarNames.add(jar.toString());
+			}
+			this.jars = Collections.unmodifiableList(jarNames);
+			this.parent = new WeakReference<ClassLoader>(parent);
+			this.parentHash = System.identityHashCode(parent);
+			this.includes = Arrays.asList(includes.clone());
+			this.excludes = Arrays.asList(excludes.clone());
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) o;
+			// class loaders are compared by identity
+			return parent.get() == other.parent.get() && location.equals(other.location) && jars.equals(other.jars) && includes.equals(other.includes)
+					&& excludes.equals(other.excludes);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = location.hashCode();
+			result = 31 * result + jars.hashCode();
+			result = 31 * result + parentHash;
+			result = 31 * result + includes.hashCode();
+			result = 31 * result + excludes.hashCode();
+			return result;
+		}
+
+		@Override
+		public String toString()
+		{
+			return location;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The per-process directory that nested jars are extracted to.
+ *
+ * The directory is locked for as long as the process lives, which is how a later process tells a directory left behind by a killed process from
+ * one that is still in use - the former are swept when a store is created.  The directory is removed by a shutdown hook rather than by marking
+ * every file deleteOnExit.
+ *
+ * Each extracted jar counts the class loaders that have retained it.  Once a jar has been retained and every retainer has released it, it may be
+ * deleted - immediately on request, or least recently used first when the store is over its size quota.  Jars nobody ever retained are kept.
+ */
+class ExtractionStore
+{
+	private static final Logger logger = LoggerFactory.getLogger(ExtractionStore.class);
+
+	static final String DIRECTORY_PREFIX = "herman-";
+	private static final String LOCK_FILE = ".lock";
+	// a directory's lock file exists a moment before it is locked, so recently created directories are never swept
+	static final long MIN_SWEEP_AGE = 60000;
+
+	// closing any channel on a file can drop every lock this process holds on it, so never go near the lock of a store in this process.
+	private static final Set<File> ownedDirectories = Collections.synchronizedSet(new HashSet<File>());
+
+	interface Listener
+	{
+		void evicted(String key, File file);
+	}
+
+	private final File directory;
+	private final long quota;
+	private final Listener listener;
+	private final Map<String, Integer> retainCounts = new HashMap<String, Integer>();
+	private final Map<String, File> files = new LinkedHashMap<String, File>(16, 0.75f, true);
+	private long size;
+	private RandomAccessFile lockFile;
+
+	ExtractionStore(final File parent, final long quota, final Listener listener)
+	{
+		this.directory = new File(parent, DIRECTORY_PREFIX + UUID.randomUUID());
+		this.quota = quota;
+		this.listener = listener;
+		ownedDirectories.add(directory);
+		sweep(parent);
+		directory.mkdirs();
+		try
+		{
+			lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+			lockFile.getChannel().lock();
+		}
+		catch (IOException e)
+		{
+			logger.warn("Could not lock extraction directory " + directory + ", it may be swept by another process.", e);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("herman-extraction-cleanup")
+		{
+			@Override
+			public void run()
+			{
+				close();
+			}
+		});
+	}
+
+	File getDirectory()
+	{
+		return directory;
+	}
+
+	File createFile() throws IOException
+	{
+		return File.createTempFile(DIRECTORY_PREFIX, ".jar", directory);
+	}
+
+	synchronized void added(String key, File file)
+	{
+		files.put(key, file);
+		size += file.length();
+		evict(quota);
+	}
+
+	synchronized void retain(String key)
+	{
+		Integer count = retainCounts.get(key);
+		retainCounts.put(key, count == null ? 1 : count + 1);
+	}
+
+	synchronized void release(String key)
+	{
+		Integer count = retainCounts.get(key);
+		if (count != null && count > 0)
+		{
+			retainCounts.put(key, count - 1);
+			files.get(key);
+			evict(quota);
+		}
+	}
+
+	synchronized boolean isRetained(String key)
+	{
+		Integer count = retainCounts.get(key);
+		return count != null && count > 0;
+	}
+
+	/*
+	 * Deletes the file for a key right away, provided nobody is still holding on to it.
+	 */
+	synchronized void delete(String key)
+	{
+		Integer count = retainCounts.get(key);
+		if (count != null && count == 0 && files.containsKey(key))
+		{
+			evict(key, files.remove(key));
+		}
+	}
+
+	synchronized long size()
+	{
+		return size;
+	}
+
+	private void evict(long max)
+	{
+		Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+		List<Map.Entry<String, File>> evicted = new ArrayList<Map.Entry<String, File>>();
+		long remaining = size;
+		while (remaining > max && iterator.hasNext())
+		{
+			Map.Entry<String, File> entry = iterator.next();
+			Integer count = retainCounts.get(entry.getKey());
+			if (count != null && count == 0)
+			{
+				remaining -= entry.getValue().length();
+				evicted.add(entry);
+				iterator.remove();
+			}
+		}
+		for (Map.Entry<String, File> entry : evicted)
+		{
+			evict(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void evict(String key, File file)
+	{
+		retainCounts.remove(key);
+		size -= file.length();
+		listener.evicted(key, file);
+		if (!file.delete())
+		{
+			logger.debug("Could not delete " + file + ", leaving it for the shutdown hook.");
+		}
+	}
+
+	synchronized void close()
+	{
+		files.clear();
+		retainCounts.clear();
+		size = 0;
+		try
+		{
+			if (lockFile != null)
+			{
+				lockFile.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// purposefully do nothing - the directory goes either way.
+		}
+		deleteRecursively(directory);
+		ownedDirectories.remove(directory);
+	}
+
+	/*
+	 * Removes the directories of processes that died without cleaning up after themselves.  A directory whose lock we can take has no owner left.
+	 */
+	private void sweep(File parent)
+	{
+		File[] candidates = parent.listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(final File file)
+			{
+				File lockFile = new File(file, LOCK_FILE);
+				return file.isDirectory() && file.getName().startsWith(DIRECTORY_PREFIX) && lockFile.isFile()
+						&& lockFile.lastModified() < System.currentTimeMillis() - MIN_SWEEP_AGE;
+			}
+		});
+		if (candidates == null)
+		{
+			return;
+		}
+		for (File candidate : candidates)
+		{
+			if (ownedDirectories.contains(candidate))
+			{
+				continue;
+			}
+			try
+			{
+				RandomAccessFile candidateLock = new RandomAccessFile(new File(candidate, LOCK_FILE), "rw");
+				try
+				{
+					FileLock lock = candidateLock.getChannel().tryLock();
+					if (lock != null)
+					{
+						// empty the directory while holding its lock, so no other process can take it over half deleted
+						logger.info("Removing orphaned extraction directory " + candidate);
+						deleteContents(candidate);
+						lock.release();
+						candidateLock.close();
+						deleteRecursively(candidate);
+					}
+				}
+				finally
+				{
+					candidateLock.close();
+				}
+			}
+			catch (IOException e)
+			{
+				logger.debug("Could not check extraction directory " + candidate, e);
+			}
+		}
+	}
+
+	private static void deleteContents(File directory)
+	{
+		File[] children = directory.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				if (!child.getName().equals(LOCK_FILE))
+				{
+					deleteRecursively(child);
+				}
+			}
+		}
+	}
+
+	private static void deleteRecursively(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
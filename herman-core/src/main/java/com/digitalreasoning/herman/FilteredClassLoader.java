@@ -20,6 +20,7 @@
 package com.digitalreasoning.herman;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Enumeration;
 
@@ -31,10 +32,12 @@ import java.util.Enumeration;
  */
 class FilteredClassLoader extends ClassLoader
 {
-	private final String[] positiveClassFilters;
-	private final String[] positiveResourceFilters;
-	private final String[] negativeClassFilters;
-	private final String[] negativeResourceFilters;
+	static
+	{
+		enableParallelLoading();
+	}
+
+	private final PrefixMatcher filters;
 
 	private final ClassLoader extensionClassLoader;
 
@@ -47,89 +50,31 @@ class FilteredClassLoader extends ClassLoader
 	{
 		super(parent);
 
-		this.positiveClassFilters = processFilters(fs);
-		this.negativeClassFilters = processFilters(negativeFs);
-
-		this.positiveResourceFilters = filters2FNFilters(this.positiveClassFilters);
-		this.negativeResourceFilters = filters2FNFilters(this.negativeClassFilters);
+		this.filters = PrefixMatcher.compile(fs, negativeFs);
 
 		extensionClassLoader = getSystemClassLoader().getParent();
 	}
 
-	private static String[] processFilters(String[] fs)
+	/*
+	 * See HermanClassLoader - this has to be repeated here, since registration applies to the class that calls it.
+	 */
+	private static void enableParallelLoading()
 	{
-		if (fs == null || fs.length == 0)
-		{
-			return null;
-		}
-
-		String[] f = new String[fs.length];
-		for (int i = 0; i < fs.length; i++)
-		{
-			String filter = fs[i];
-			if (filter.endsWith("*"))
-			{
-				filter = filter.substring(0, filter.length() - 1);
-			}
-			f[i] = filter;
-		}
-		return f;
-	}
-
-	private static String[] filters2FNFilters(String[] fs)
-	{
-		if (fs == null || fs.length == 0)
-		{
-			return null;
-		}
-
-		String[] f = new String[fs.length];
-		for (int i = 0; i < fs.length; i++)
+		try
 		{
-			f[i] = fs[i].replace('.', '/');
+			Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+			register.setAccessible(true);
+			register.invoke(null);
 		}
-		return f;
-	}
-
-	private boolean isExcluded(String name, boolean asResource)
-	{
-		final String[] filters = asResource ? negativeResourceFilters : negativeClassFilters;
-		if(filters != null)
+		catch (Exception e)
 		{
-			for(String negativeFilter: filters)
-			{
-				if (name.startsWith(negativeFilter))
-				{
-					return true;
-				}
-			}
+			// purposefully do nothing - on Java 6 class loading is serialized on the loader anyway.
 		}
-		return false;
 	}
 
 	private boolean isIncluded(String name, boolean asResource)
 	{
-		if(isExcluded(name, asResource))
-		{
-			return false;
-		}
-		final String[] filters = asResource ? positiveResourceFilters : this.positiveClassFilters;
-		if (filters != null)
-		{
-			for(String filter: filters)
-			{
-				if (name.startsWith(filter))
-				{
-					return true;
-				}
-			}
-			return false;
-		}
-		else
-		{
-			// if no filters are defined, then we assume everything not excluded is included
-			return true;
-		}
+		return filters.isIncluded(name, asResource);
 	}
 
 	private boolean isResourceIncluded(final String name)
@@ -142,15 +87,27 @@ class FilteredClassLoader extends ClassLoader
 		return isIncluded(name, false);
 	}
 
+	/*
+	 * Whether a class could come from the extension (or bootstrap) class loader.  Looking for the class file doesn't throw, where asking for the
+	 * class would fill in the stack trace of a ClassNotFoundException for every class that isn't there - which is most of them.
+	 */
+	private boolean isExtensionCandidate(String name)
+	{
+		return name.startsWith("java.") || extensionClassLoader.getResource(name.replace('.', '/') + ".class") != null;
+	}
+
 	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
 	{
-		try
-		{
-			return extensionClassLoader.loadClass(name);
-		}
-		catch (ClassNotFoundException e)
+		if(isExtensionCandidate(name))
 		{
-			// purposefully do nothing - since it's not in the system class loader, now we need to apply the filters.
+			try
+			{
+				return extensionClassLoader.loadClass(name);
+			}
+			catch (ClassNotFoundException e)
+			{
+				// purposefully do nothing - since it's not in the system class loader, now we need to apply the filters.
+			}
 		}
 		if(isClassIncluded(name))
 		{
@@ -1,18 +1,336 @@
 package com.digitalreasoning.herman;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class HermanClassLoader extends URLClassLoader
 {
+	private static final Logger logger = LoggerFactory.getLogger(HermanClassLoader.class);
+
+	static
+	{
+		enableParallelLoading();
+	}
+
+	/**
+	 * The number of recent class and resource misses each loader remembers (1024 of each by default).  0 turns the cache off.
+	 */
+	public static final String MISS_CACHE_SIZE_PROPERTY = "herman.missCacheSize";
+	private static final int DEFAULT_MISS_CACHE_SIZE = 1024;
+
 	private final URL isolatedJarLocation;
+	private final MissCache classMisses;
+	private final MissCache resourceMisses;
+	private final Object packageIndexLock = new Object();
+	private volatile PackageIndex packageIndex;
+	private volatile boolean unindexable;
+	private volatile boolean closed;
 
 	public HermanClassLoader(final URL[] urls, final ClassLoader parent, final URL isolatedJarLocation, final String[] includes, final String[] excludes)
 	{
-		super(urls, new FilteredClassLoader(parent, includes, excludes));
+		this(urls, new FilteredClassLoader(parent, includes, excludes), isolatedJarLocation);
+	}
+
+	/*
+	 * A loader whose parent is used as is - for a root that sits on top of a shared loader, which has already done the filtering.
+	 */
+	HermanClassLoader(final URL[] urls, final ClassLoader parent, final URL isolatedJarLocation)
+	{
+		super(urls, parent);
 		this.isolatedJarLocation = isolatedJarLocation;
+		int missCacheSize = Integer.getInteger(MISS_CACHE_SIZE_PROPERTY, DEFAULT_MISS_CACHE_SIZE);
+		this.classMisses = new MissCache(missCacheSize);
+		this.resourceMisses = new MissCache(missCacheSize);
+	}
+
+	/*
+	 * Lets threads load different classes at the same time, locking per class name rather than on the whole loader.  This is looked up
+	 * reflectively since it only exists from Java 7 on, and it has to be called from the class being registered.
+	 */
+	private static void enableParallelLoading()
+	{
+		try
+		{
+			Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+			register.setAccessible(true);
+			register.invoke(null);
+		}
+		catch (Exception e)
+		{
+			// purposefully do nothing - on Java 6 class loading is serialized on the loader anyway.
+		}
+	}
+
+	/*
+	 * Frameworks probe for optional classes over and over - remember what isn't there rather than asking the parents and every jar each time.  A
+	 * remembered miss doesn't hide a class that was defined afterwards, as code generators do after probing for the class they are about to inject.
+	 */
+	@Override
+	protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+	{
+		if (classMisses.contains(name) && findLoadedClass(name) == null)
+		{
+			throw new ClassNotFoundException(name);
+		}
+		int generation = classMisses.generation();
+		try
+		{
+			return super.loadClass(name, resolve);
+		}
+		catch (ClassNotFoundException e)
+		{
+			// a class that failed to read is there, so only remember the ones that just weren't found
+			if (e.getCause() == null)
+			{
+				classMisses.add(name, generation);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public URL getResource(final String name)
+	{
+		if (resourceMisses.contains(name))
+		{
+			return null;
+		}
+		int generation = resourceMisses.generation();
+		URL resource = super.getResource(name);
+		if (resource == null)
+		{
+			resourceMisses.add(name, generation);
+		}
+		return resource;
+	}
+
+	/*
+	 * A loader with many nested jars would otherwise look for each class in every jar in turn.  The package index narrows that down to the jars
+	 * that have the class's package, and the class is read straight out of the jar's directory.  When the jars can't be indexed, URLClassLoader
+	 * does the search.
+	 */
+	@Override
+	protected Class<?> findClass(final String name) throws ClassNotFoundException
+	{
+		PackageIndex index = getPackageIndex();
+		if (index == null)
+		{
+			return super.findClass(name);
+		}
+		String path = name.replace('.', '/').concat(".class");
+		for (PackageIndex.Jar jar : index.getJars(path))
+		{
+			int entry = jar.find(path);
+			if (entry != -1)
+			{
+				try
+				{
+					return defineClass(name, jar, entry);
+				}
+				catch (IOException e)
+				{
+					throw new ClassNotFoundException(name, e);
+				}
+			}
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	private Class<?> defineClass(String name, PackageIndex.Jar jar, int entry) throws IOException
+	{
+		int lastDot = name.lastIndexOf('.');
+		if (lastDot != -1)
+		{
+			definePackage(name.substring(0, lastDot), jar);
+		}
+		byte[] bytes = jar.read(entry);
+		return defineClass(name, bytes, 0, bytes.length, jar.getCodeSource());
+	}
+
+	private void definePackage(String packageName, PackageIndex.Jar jar) throws IOException
+	{
+		Package existing = getPackage(packageName);
+		if (existing == null)
+		{
+			try
+			{
+				Manifest manifest = jar.getManifest();
+				if (manifest != null)
+				{
+					definePackage(packageName, manifest, jar.getUrl());
+				}
+				else
+				{
+					definePackage(packageName, null, null, null, null, null, null, null);
+				}
+				return;
+			}
+			catch (IllegalArgumentException e)
+			{
+				// another thread defined the package first, so check this jar against that definition.
+				existing = getPackage(packageName);
+			}
+		}
+		verifySealing(existing, packageName, jar);
+	}
+
+	/*
+	 * The same checks URLClassLoader makes before defining a class in a package that already exists: a sealed package can only get classes from
+	 * the jar that sealed it, and an unsealed package can't be sealed by a later jar.
+	 */
+	private static void verifySealing(Package existing, String packageName, PackageIndex.Jar jar) throws IOException
+	{
+		if (existing.isSealed())
+		{
+			if (!existing.isSealed(jar.getUrl()))
+			{
+				throw new SecurityException("sealing violation: package " + packageName + " is sealed");
+			}
+		}
+		else
+		{
+			Manifest manifest = jar.getManifest();
+			if (manifest != null && isSealed(packageName, manifest))
+			{
+				throw new SecurityException("sealing violation: can't seal package " + packageName + ": already loaded");
+			}
+		}
+	}
+
+	private static boolean isSealed(String packageName, Manifest manifest)
+	{
+		Attributes attributes = manifest.getAttributes(packageName.replace('.', '/').concat("/"));
+		String sealed = attributes == null ? null : attributes.getValue(Attributes.Name.SEALED);
+		if (sealed == null)
+		{
+			sealed = manifest.getMainAttributes().getValue(Attributes.Name.SEALED);
+		}
+		return "true".equalsIgnoreCase(sealed);
+	}
+
+	@Override
+	public URL findResource(final String name)
+	{
+		PackageIndex index = getIndexFor(name);
+		if (index == null)
+		{
+			return super.findResource(name);
+		}
+		try
+		{
+			for (PackageIndex.Jar jar : index.getJars(name))
+			{
+				if (jar.find(name) != -1)
+				{
+					return jar.getResource(name);
+				}
+			}
+		}
+		catch (MalformedURLException e)
+		{
+			logger.debug("Could not create url for " + name, e);
+		}
+		return null;
+	}
+
+	@Override
+	public Enumeration<URL> findResources(final String name) throws IOException
+	{
+		PackageIndex index = getIndexFor(name);
+		if (index == null)
+		{
+			return super.findResources(name);
+		}
+		List<URL> resources = new ArrayList<URL>();
+		for (PackageIndex.Jar jar : index.getJars(name))
+		{
+			if (jar.find(name) != -1)
+			{
+				resources.add(jar.getResource(name));
+			}
+		}
+		return Collections.enumeration(resources);
+	}
+
+	/*
+	 * Directory-style names are left to URLClassLoader, which has its own rules for them.
+	 */
+	private PackageIndex getIndexFor(String name)
+	{
+		if (name.length() == 0 || name.startsWith("/") || name.endsWith("/"))
+		{
+			return null;
+		}
+		return getPackageIndex();
+	}
+
+	private PackageIndex getPackageIndex()
+	{
+		if (closed)
+		{
+			return null;
+		}
+		PackageIndex index = packageIndex;
+		if (index != null || unindexable)
+		{
+			return index;
+		}
+		synchronized (packageIndexLock)
+		{
+			if (packageIndex == null && !unindexable && !closed)
+			{
+				try
+				{
+					packageIndex = PackageIndex.build(getURLs());
+				}
+				catch (IOException e)
+				{
+					logger.debug("Could not index the jars of " + this + ", searching them in turn instead.", e);
+				}
+				unindexable = packageIndex == null;
+			}
+			return packageIndex;
+		}
+	}
+
+	@Override
+	protected void addURL(final URL url)
+	{
+		super.addURL(url);
+		synchronized (packageIndexLock)
+		{
+			packageIndex = null;
+			unindexable = false;
+		}
+		classMisses.clear();
+		resourceMisses.clear();
+	}
+
+	/*
+	 * URLClassLoader is only Closeable from Java 7 on, so this only overrides anything there - and is only called there, since the registry checks
+	 * for Closeable.  A closed URLClassLoader finds nothing more, so the index is dropped and every lookup left to it.
+	 */
+	public void close() throws IOException
+	{
+		synchronized (packageIndexLock)
+		{
+			closed = true;
+			packageIndex = null;
+		}
+		super.close();
 	}
 
 	@Override
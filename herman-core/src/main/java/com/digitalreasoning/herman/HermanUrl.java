@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.digitalreasoning.herman.HermanUrlStreamHandler.HERMAN_SEPARATOR;
+import static com.digitalreasoning.herman.HermanUrlStreamHandler.JAR_SEPARATOR;
+
+/*
+ * A herman url broken into its parts - herman:<nested jar url>^/<resource>, where the nested jar url is usually jar:file:<outer jar>!/<entry>.
+ * Parsing is cached, so opening the same url again is a map lookup.
+ */
+final class HermanUrl
+{
+	private static final int MAX_CACHED_URLS = 10000;
+	private static final ConcurrentMap<String, HermanUrl> urlCache = new ConcurrentHashMap<String, HermanUrl>();
+	private static final ConcurrentMap<String, NestedJar> jarCache = new ConcurrentHashMap<String, NestedJar>();
+
+	private final NestedJar jar;
+	private final String resource;
+
+	private HermanUrl(final NestedJar jar, final String resource)
+	{
+		this.jar = jar;
+		this.resource = resource;
+	}
+
+	static HermanUrl parse(URL url) throws MalformedURLException
+	{
+		String file = url.getFile();
+		HermanUrl parsed = urlCache.get(file);
+		if (parsed == null)
+		{
+			parsed = doParse(url, file);
+			if (urlCache.size() >= MAX_CACHED_URLS)
+			{
+				// resource probes that miss can produce an endless stream of distinct urls - start over rather than grow without bound.
+				urlCache.clear();
+			}
+			urlCache.put(file, parsed);
+		}
+		return parsed;
+	}
+
+	private static HermanUrl doParse(URL url, String file) throws MalformedURLException
+	{
+		String urlFile = decode(file);
+		int separator = urlFile.indexOf(HERMAN_SEPARATOR);
+		if (separator == -1)
+		{
+			return new HermanUrl(new NestedJar(urlFile), null);
+		}
+		String resource = urlFile.substring(separator + HERMAN_SEPARATOR.length());
+		if (resource.contains(HERMAN_SEPARATOR))
+		{
+			throw new IOError(new MalformedURLException("Url " + url + " contains multiple '^' separators.  We cannot handle that."));
+		}
+		return new HermanUrl(getNestedJar(urlFile.substring(0, separator)), resource);
+	}
+
+	private static String decode(String file)
+	{
+		if (file.indexOf('%') == -1 && file.indexOf('+') == -1)
+		{
+			return file;
+		}
+		try
+		{
+			return URLDecoder.decode(file, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static NestedJar getNestedJar(String jarUrl) throws MalformedURLException
+	{
+		NestedJar jar = jarCache.get(jarUrl);
+		if (jar == null)
+		{
+			jar = new NestedJar(jarUrl);
+			NestedJar existing = jarCache.putIfAbsent(jarUrl, jar);
+			jar = existing == null ? jar : existing;
+		}
+		return jar;
+	}
+
+	NestedJar getJar()
+	{
+		return jar;
+	}
+
+	/*
+	 * The resource within the nested jar, or null if this isn't a nested jar url at all and just wraps some other url.
+	 */
+	String getResource()
+	{
+		return resource;
+	}
+
+	static final class NestedJar
+	{
+		private final String url;
+		private final File outerFile;
+		private final String entryName;
+
+		private NestedJar(final String url) throws MalformedURLException
+		{
+			this.url = url;
+			int separator = url.indexOf(JAR_SEPARATOR);
+			if (url.startsWith("jar:file:") && separator != -1 && url.indexOf(JAR_SEPARATOR, separator + 1) == -1)
+			{
+				this.outerFile = toFile(new URL(url.substring("jar:".length(), separator)));
+				this.entryName = url.substring(separator + JAR_SEPARATOR.length());
+			}
+			else
+			{
+				this.outerFile = null;
+				this.entryName = null;
+			}
+		}
+
+		private static File toFile(URL url)
+		{
+			try
+			{
+				return new File(url.toURI());
+			}
+			catch (URISyntaxException e)
+			{
+				return new File(url.getPath());
+			}
+		}
+
+		String getUrl()
+		{
+			return url;
+		}
+
+		/*
+		 * The outer jar, if this is a url of the form jar:file:/outer.jar!/nested.jar, otherwise null.
+		 */
+		File getOuterFile()
+		{
+			return outerFile;
+		}
+
+		String getEntryName()
+		{
+			return entryName;
+		}
+
+		@Override
+		public String toString()
+		{
+			return url;
+		}
+	}
+}
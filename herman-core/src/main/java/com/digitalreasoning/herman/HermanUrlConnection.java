@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.jar.JarEntry;
+
+/*
+ * Serves a resource out of a nested jar - either one that is read in place from a mapping, or an extracted copy opened through a JarFilePool.
+ */
+abstract class HermanUrlConnection extends URLConnection
+{
+	protected final String resource;
+
+	protected HermanUrlConnection(final URL url, final String resource)
+	{
+		super(url);
+		this.resource = resource;
+	}
+
+	/*
+	 * Looks up the resource, returning false if it doesn't exist.
+	 */
+	protected abstract boolean find() throws IOException;
+
+	protected abstract InputStream openStream() throws IOException;
+
+	protected abstract long size();
+
+	@Override
+	public void connect() throws IOException
+	{
+		if (!connected)
+		{
+			if (!find())
+			{
+				throw new FileNotFoundException("Entry " + resource + " not found in " + url);
+			}
+			connected = true;
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		connect();
+		return openStream();
+	}
+
+	@Override
+	public int getContentLength()
+	{
+		try
+		{
+			connect();
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+		long size = size();
+		return size > Integer.MAX_VALUE ? -1 : (int) size;
+	}
+
+	static class Mapped extends HermanUrlConnection
+	{
+		private final ZipDirectory jar;
+		private int entry = -1;
+
+		Mapped(final URL url, final ZipDirectory jar, final String resource)
+		{
+			super(url, resource);
+			this.jar = jar;
+		}
+
+		@Override
+		protected boolean find()
+		{
+			entry = jar.indexOf(resource);
+			return entry != -1;
+		}
+
+		@Override
+		protected InputStream openStream() throws IOException
+		{
+			return jar.getInputStream(entry);
+		}
+
+		@Override
+		protected long size()
+		{
+			return jar.getSize(entry);
+		}
+	}
+
+	static class Pooled extends HermanUrlConnection
+	{
+		private final JarFilePool pool;
+		private final File file;
+		private JarEntry entry;
+
+		Pooled(final URL url, final JarFilePool pool, final File file, final String resource)
+		{
+			super(url, resource);
+			this.pool = pool;
+			this.file = file;
+		}
+
+		@Override
+		protected boolean find() throws IOException
+		{
+			JarFilePool.Handle handle = pool.acquire(file);
+			try
+			{
+				entry = handle.getJarFile().getJarEntry(resource);
+				return entry != null;
+			}
+			finally
+			{
+				pool.release(handle);
+			}
+		}
+
+		@Override
+		protected InputStream openStream()
+		{
+			return new PooledInputStream();
+		}
+
+		@Override
+		protected long size()
+		{
+			return entry.getSize();
+		}
+
+		/*
+		 * Only holds on to a pooled handle between the first read and either the end of the entry or close.  Class loaders open streams just to
+		 * check that a resource exists and never close them, and those shouldn't pin a handle.
+		 */
+		private class PooledInputStream extends InputStream
+		{
+			private JarFilePool.Handle handle;
+			private InputStream input;
+			private boolean closed;
+
+			private InputStream input() throws IOException
+			{
+				if (input == null)
+				{
+					handle = pool.acquire(file);
+					try
+					{
+						input = handle.getJarFile().getInputStream(entry);
+					}
+					catch (IOException e)
+					{
+						pool.release(handle);
+						handle = null;
+						throw e;
+					}
+				}
+				return input;
+			}
+
+			@Override
+			public int read() throws IOException
+			{
+				if (closed)
+				{
+					return -1;
+				}
+				int b = input().read();
+				if (b == -1)
+				{
+					close();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException
+			{
+				if (closed)
+				{
+					return -1;
+				}
+				int n = input().read(b, off, len);
+				if (n == -1)
+				{
+					close();
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(final long n) throws IOException
+			{
+				return closed ? 0 : input().skip(n);
+			}
+
+			@Override
+			public int available() throws IOException
+			{
+				return closed || input == null ? 0 : input.available();
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if (!closed)
+				{
+					closed = true;
+					if (input != null)
+					{
+						try
+						{
+							input.close();
+						}
+						finally
+						{
+							pool.release(handle);
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -20,31 +20,54 @@ import java.io.FileOutputStream;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.net.URLDecoder;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
-import java.util.regex.Pattern;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 public class HermanUrlStreamHandler extends URLStreamHandler
 {
 	public static final String PROTOCOL = "herman";
 
 	public static final String HERMAN_SEPARATOR = "^/";
-	private static final String JAR_SEPARATOR = "!/";
+	static final String JAR_SEPARATOR = "!/";
+	private static final long TRANSFER_SIZE = 1 << 20;
+
+	/**
+	 * System property naming a directory in which to keep extracted nested jars across restarts.  When it is not set, nested jars are extracted
+	 * to a fresh temporary directory for each process.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "herman.cacheDir";
+
+	/**
+	 * System property capping the number of extracted jars that are held open at once.
+	 */
+	public static final String MAX_OPEN_JARS_PROPERTY = "herman.maxOpenJars";
+	private static final int DEFAULT_MAX_OPEN_JARS = 64;
+
+	/**
+	 * System property limiting the total size, in bytes, of the nested jars extracted to this process's temporary directory.  Past the limit,
+	 * jars whose class loaders have all been closed are deleted, least recently used first.
+	 */
+	public static final String EXTRACT_QUOTA_PROPERTY = "herman.extractQuota";
+
+	private static final HermanUrlStreamHandler INSTANCE = new HermanUrlStreamHandler();
 
-	private static File EXTRACT_DIR;
 	static {
 		doRegister();
-
-		EXTRACT_DIR = new File(System.getProperty("java.io.tmpdir"), "herman-" + UUID.randomUUID());
-		EXTRACT_DIR.mkdirs();
 	}
 
 
@@ -64,94 +87,404 @@ public class HermanUrlStreamHandler extends URLStreamHandler
 		{
 			if (protocol.equals(PROTOCOL))
 			{
-				return new HermanUrlStreamHandler();
+				return INSTANCE;
 			}
 			return null;
 		}
 	}
 
-	private final Map<String, File> jarFileCache = new HashMap<String, File>();
+	private final Memoizer<String, File> jarFileCache = new Memoizer<String, File>();
+	private final Memoizer<String, ZipDirectory> nestedJarCache = new Memoizer<String, ZipDirectory>();
+	private final Memoizer<String, ZipDirectory> outerJarCache = new Memoizer<String, ZipDirectory>();
+	private final JarFilePool jarFilePool = new JarFilePool(getMaxOpenJars());
+	private final ExtractionStore extractionStore = new ExtractionStore(new File(System.getProperty("java.io.tmpdir")),
+			Long.getLong(EXTRACT_QUOTA_PROPERTY, Long.MAX_VALUE), new ExtractionStore.Listener()
+	{
+		@Override
+		public void evicted(final String key, final File file)
+		{
+			jarFileCache.remove(key);
+			jarFilePool.close(file);
+		}
+	});
+
+	/*
+	 * Every handler owns an extraction directory, with its own sweep and shutdown hook, so the process sticks to the one instance - tests aside.
+	 */
+	HermanUrlStreamHandler()
+	{
+	}
 
-	private File getJarFile(String jarUrl) throws IOException
+	private static int getMaxOpenJars()
 	{
-		if (!jarFileCache.containsKey(jarUrl))
+		int maxOpenJars = Integer.getInteger(MAX_OPEN_JARS_PROPERTY, DEFAULT_MAX_OPEN_JARS);
+		if (maxOpenJars < 1)
 		{
-			URL url = new URL(jarUrl);
-			URLConnection embededJarCon = url.openConnection();
-			InputStream input = embededJarCon.getInputStream();
-			File tempJar = File.createTempFile(PROTOCOL + "-", ".jar", EXTRACT_DIR);
-			tempJar.deleteOnExit();
-			OutputStream output = new FileOutputStream(tempJar);
+			throw new IllegalArgumentException(MAX_OPEN_JARS_PROPERTY + " must be at least 1, not " + maxOpenJars);
+		}
+		return maxOpenJars;
+	}
+
+	/*
+	 * Nested jars that are stored (not deflated) inside a jar on the file system can be read in place from a memory mapping of the outer jar - no
+	 * need to copy them anywhere.  Failing that, a jar extracted to the cache directory is mapped in the same way, so that every process on the host
+	 * shares the same pages.  Returns null when neither is possible and the jar has to be extracted to a private temp file instead.
+	 */
+	private ZipDirectory getNestedJar(final HermanUrl.NestedJar jar) throws IOException
+	{
+		return nestedJarCache.get(jar.getUrl(), new Callable<ZipDirectory>()
+		{
+			@Override
+			public ZipDirectory call() throws IOException
+			{
+				return readNestedJar(jar);
+			}
+		});
+	}
 
+	private ZipDirectory readNestedJar(HermanUrl.NestedJar jar) throws IOException
+	{
+		if (jar.getOuterFile() != null)
+		{
 			try
 			{
-				byte[] buffer = new byte[4096];
-				int n = 0;
-				while (-1 != (n = input.read(buffer)))
+				ZipDirectory outerJar = getOuterJar(jar.getOuterFile());
+				int entry = outerJar.indexOf(jar.getEntryName());
+				if (entry != -1 && outerJar.getMethod(entry) == ZipEntry.STORED)
 				{
-					output.write(buffer, 0, n);
+					return ZipDirectory.read(outerJar.getData(entry));
 				}
 			}
-			catch (Exception e)
+			catch (ZipException e)
 			{
-				throw new IOError(e);
+				// purposefully do nothing - anything we can't read in place is left to the regular extraction.
 			}
-			finally
+		}
+		File cachedJar = getCachedJarFile(jar);
+		return cachedJar == null ? null : ZipDirectory.map(cachedJar);
+	}
+
+	/*
+	 * Mappings are keyed by the jar's size and modification time as well as its path, so that a jar that is replaced is mapped afresh.
+	 */
+	private ZipDirectory getOuterJar(final File file) throws IOException
+	{
+		return outerJarCache.get(file.getPath() + '\t' + file.length() + '\t' + file.lastModified(), new Callable<ZipDirectory>()
+		{
+			@Override
+			public ZipDirectory call() throws IOException
+			{
+				return ZipDirectory.map(file);
+			}
+		});
+	}
+
+	private File getJarFile(final HermanUrl.NestedJar jar) throws IOException
+	{
+		return jarFileCache.get(jar.getUrl(), new Callable<File>()
+		{
+			@Override
+			public File call() throws IOException
 			{
+				File jarFile = extractionStore.createFile();
+				extract(jar, jarFile);
+				extractionStore.added(jar.getUrl(), jarFile);
+				return jarFile;
+			}
+		});
+	}
+
+	/*
+	 * When a cache directory is configured, nested jars from jars on the file system are extracted there under a name derived from the outer jar's
+	 * path, size and modification time and the nested entry's name and crc.  A later process finds the same name and only has to check the length
+	 * of the file before using it.  Several processes may share the directory - extraction happens under an exclusive lock on a companion lock file,
+	 * so one process extracts and the rest wait for it and then use its copy.  Returns null if the jar can't be cached.
+	 */
+	private File getCachedJarFile(HermanUrl.NestedJar jar) throws IOException
+	{
+		String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+		File outerFile = jar.getOuterFile();
+		if (cacheDir == null || outerFile == null)
+		{
+			return null;
+		}
+		String entryName = jar.getEntryName();
+		ZipDirectory outerJar;
+		try
+		{
+			outerJar = getOuterJar(outerFile);
+		}
+		catch (ZipException e)
+		{
+			return null;
+		}
+		int entry = outerJar.indexOf(entryName);
+		if (entry == -1)
+		{
+			return null;
+		}
+
+		String key = outerFile.getAbsolutePath() + "|" + outerFile.length() + "|" + outerFile.lastModified() + "|" + entryName + "|" + outerJar.getCrc(entry);
+		String baseName = entryName.substring(entryName.lastIndexOf('/') + 1);
+		if (baseName.endsWith(".jar"))
+		{
+			baseName = baseName.substring(0, baseName.length() - ".jar".length());
+		}
+		File cachedJar = new File(cacheDir, baseName + "-" + digest(key) + ".jar");
+		long size = outerJar.getSize(entry);
+		if (cachedJar.length() != size)
+		{
+			cachedJar.getParentFile().mkdirs();
+			RandomAccessFile lockFile = new RandomAccessFile(new File(cachedJar.getPath() + ".lock"), "rw");
+			try
+			{
+				FileLock lock = lockFile.getChannel().lock();
 				try
 				{
-					if (input != null)
+					// another process may have finished the extraction while we were waiting on the lock
+					if (cachedJar.length() != size)
 					{
-						input.close();
+						extractAndMove(jar, cachedJar);
 					}
 				}
-				catch (IOException ioe)
+				finally
 				{
-					throw new IOError(ioe);
+					lock.release();
 				}
-				try
+			}
+			finally
+			{
+				lockFile.close();
+			}
+		}
+		return cachedJar;
+	}
+
+	private void extractAndMove(HermanUrl.NestedJar jar, File target) throws IOException
+	{
+		File tempJar = File.createTempFile(PROTOCOL + "-", ".tmp", target.getParentFile());
+		try
+		{
+			extract(jar, tempJar);
+			if (!tempJar.renameTo(target))
+			{
+				target.delete();
+				if (!tempJar.renameTo(target))
 				{
-					if (output != null)
-					{
-						output.close();
-					}
+					throw new IOException("Could not move " + tempJar + " to " + target);
+				}
+			}
+		}
+		finally
+		{
+			tempJar.delete();
+		}
+	}
+
+	private static String digest(String key)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+			{
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Copies a nested jar to a file through the file channel, reading compressed entries of jars on the file system straight from the mapping of the
+	 * outer jar.
+	 */
+	private void extract(HermanUrl.NestedJar jar, File target) throws IOException
+	{
+		InputStream input = openNestedJar(jar);
+		try
+		{
+			FileOutputStream output = new FileOutputStream(target);
+			try
+			{
+				ReadableByteChannel source = Channels.newChannel(input);
+				FileChannel destination = output.getChannel();
+				long position = 0;
+				long transferred;
+				while ((transferred = destination.transferFrom(source, position, TRANSFER_SIZE)) > 0)
+				{
+					position += transferred;
 				}
-				catch (IOException ioe)
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private InputStream openNestedJar(HermanUrl.NestedJar jar) throws IOException
+	{
+		if (jar.getOuterFile() != null)
+		{
+			try
+			{
+				ZipDirectory outerJar = getOuterJar(jar.getOuterFile());
+				int entry = outerJar.indexOf(jar.getEntryName());
+				if (entry != -1)
 				{
-					throw new IOError(ioe);
+					return outerJar.getInputStream(entry);
 				}
 			}
+			catch (ZipException e)
+			{
+				// purposefully do nothing - the jar url handler gets a go at it instead.
+			}
+		}
+		return new URL(jar.getUrl()).openStream();
+	}
+
+	/*
+	 * Makes sure that the nested jar behind a herman url is ready to read - mapped or extracted - so that the work happens now rather than on the
+	 * first class load.
+	 */
+	static void prepare(URL url) throws IOException
+	{
+		HermanUrl hermanUrl = HermanUrl.parse(url);
+		if (hermanUrl.getResource() != null && INSTANCE.getNestedJar(hermanUrl.getJar()) == null)
+		{
+			INSTANCE.getJarFile(hermanUrl.getJar());
+		}
+	}
 
-			jarFileCache.put(jarUrl, tempJar);
+	/*
+	 * The cached mapping of a jar on the file system, shared with discovery so that a jar is only mapped and its directory only read once.
+	 */
+	static ZipDirectory mapOuterJar(File file) throws IOException
+	{
+		return INSTANCE.getOuterJar(file);
+	}
 
+	/*
+	 * The directory of the nested jar behind a herman url, for class loaders to index.  Jars that can't be read in place are extracted first and the
+	 * extracted copy is mapped.  Returns null for urls that aren't nested jars.
+	 */
+	static ZipDirectory getDirectory(URL url) throws IOException
+	{
+		HermanUrl hermanUrl = HermanUrl.parse(url);
+		if (hermanUrl.getResource() == null || hermanUrl.getResource().length() > 0)
+		{
+			return null;
 		}
-		return jarFileCache.get(jarUrl);
+		ZipDirectory nestedJar = INSTANCE.getNestedJar(hermanUrl.getJar());
+		return nestedJar != null ? nestedJar : ZipDirectory.map(INSTANCE.getJarFile(hermanUrl.getJar()));
 	}
 
-	final Pattern hermanUrlSplitter = Pattern.compile(HERMAN_SEPARATOR, Pattern.LITERAL);
+	/*
+	 * Lifecycle hooks for the class loaders reading from nested jars.  An extracted jar becomes eligible for deletion once every loader that
+	 * retained it has released it.
+	 */
+	static void retain(URL url)
+	{
+		HermanUrl.NestedJar jar = getManagedJar(url);
+		if (jar != null)
+		{
+			INSTANCE.extractionStore.retain(jar.getUrl());
+		}
+	}
+
+	static void release(URL url)
+	{
+		HermanUrl.NestedJar jar = getManagedJar(url);
+		if (jar != null)
+		{
+			INSTANCE.extractionStore.release(jar.getUrl());
+		}
+	}
+
+	/*
+	 * Releases a jar and, if no other loader still has it retained, deletes its extracted copy straight away rather than waiting for the quota and
+	 * drops the mappings of it and of its outer jar.  Whatever still reads from them keeps them mapped; anyone else maps them again, so a jar that is
+	 * reloaded over and over doesn't pile up mappings of its old versions.
+	 */
+	static void discard(URL url)
+	{
+		HermanUrl.NestedJar jar = getManagedJar(url);
+		if (jar != null)
+		{
+			INSTANCE.extractionStore.release(jar.getUrl());
+			if (!INSTANCE.extractionStore.isRetained(jar.getUrl()))
+			{
+				INSTANCE.extractionStore.delete(jar.getUrl());
+				INSTANCE.nestedJarCache.remove(jar.getUrl());
+				if (jar.getOuterFile() != null)
+				{
+					INSTANCE.dropOuterJar(jar.getOuterFile());
+				}
+			}
+		}
+	}
+
+	private void dropOuterJar(File file)
+	{
+		String prefix = file.getPath() + '\t';
+		for (Iterator<String> keys = outerJarCache.keys().iterator(); keys.hasNext();)
+		{
+			if (keys.next().startsWith(prefix))
+			{
+				keys.remove();
+			}
+		}
+	}
+
+	private static HermanUrl.NestedJar getManagedJar(URL url)
+	{
+		if (!PROTOCOL.equals(url.getProtocol()))
+		{
+			return null;
+		}
+		try
+		{
+			HermanUrl hermanUrl = HermanUrl.parse(url);
+			return hermanUrl.getResource() == null ? null : hermanUrl.getJar();
+		}
+		catch (MalformedURLException e)
+		{
+			return null;
+		}
+	}
 
 	@Override
 	protected URLConnection openConnection(final URL url) throws IOException
 	{
-		File jarFile = null;
-		String resource;
+		HermanUrl hermanUrl;
+		File jarFile;
 		try
 		{
-			String urlFile = URLDecoder.decode(url.getFile(), "UTF-8");
-
-			if (!urlFile.contains(HERMAN_SEPARATOR))
+			hermanUrl = HermanUrl.parse(url);
+			if (hermanUrl.getResource() == null)
 			{
-				return new URL(urlFile).openConnection();
+				return new URL(hermanUrl.getJar().getUrl()).openConnection();
 			}
-			String[] parts = hermanUrlSplitter.split(urlFile);
-			if (parts.length > 2)
+
+			ZipDirectory nestedJar = getNestedJar(hermanUrl.getJar());
+			if (nestedJar != null)
 			{
-				throw new IOError(new MalformedURLException("Url " + url + " contains multiple '^' separators.  We cannot handle that."));
+				return new HermanUrlConnection.Mapped(url, nestedJar, hermanUrl.getResource());
 			}
-			String jarUrl = parts[0];
-			resource = parts.length < 2 ? "" : parts[1];
-
-			jarFile = getJarFile(jarUrl);
+			jarFile = getJarFile(hermanUrl.getJar());
 		}
 		catch (MalformedURLException e)
 		{
@@ -161,6 +494,6 @@ public class HermanUrlStreamHandler extends URLStreamHandler
 		{
 			throw new IOError(e);
 		}
-		return new URL("jar:" + jarFile.toURI().toURL() + HermanUrlStreamHandler.JAR_SEPARATOR + resource).openConnection();
+		return new HermanUrlConnection.Pooled(url, jarFilePool, jarFile, hermanUrl.getResource());
 	}
 }
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The index of nested jars that herman-maven-plugin writes to META-INF/isolated/herman.index, so that discovery doesn't have to walk the whole
+ * central directory of the outer jar.  After a comment line with the format version, every line describes one nested jar, tab separated:
+ *
+ *     <entry name> <local header offset> <compressed size> <size> <crc32, hex> <sha-1 of the contents, hex>
+ *
+ * An index is only trusted if every offset still points at the local header of the entry it names - a jar that was rewritten after it was indexed
+ * (shaded, signed, ...) fails that check and is scanned instead.
+ */
+public final class IsolatedIndex
+{
+	private static final Logger logger = LoggerFactory.getLogger(IsolatedIndex.class);
+
+	static final String INDEX_NAME = "herman.index";
+	public static final String INDEX_PATH = IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX + INDEX_NAME;
+	public static final String VERSION_LINE = "# herman-index 1";
+
+	private final List<Entry> entries;
+
+	private IsolatedIndex(final List<Entry> entries)
+	{
+		this.entries = entries;
+	}
+
+	/*
+	 * Reads the index of a jar on the file system, returning null if it has none or it doesn't describe the jar any more.
+	 */
+	static IsolatedIndex read(ZipDirectory jar, String description) throws IOException
+	{
+		// the plugin writes the index as the last entry, so that is the only place to look - searching the whole directory for it would cost as
+		// much as the scan it saves, and a jar that has had entries added after it was indexed can't be trusted anyway
+		int indexEntry = jar.size() - 1;
+		if (indexEntry < 0 || !jar.nameEquals(indexEntry, INDEX_PATH.getBytes(ZipDirectory.UTF_8)))
+		{
+			return null;
+		}
+		List<Entry> entries = parse(jar.getInputStream(indexEntry), description);
+		if (entries == null)
+		{
+			return null;
+		}
+		for (Entry entry : entries)
+		{
+			if (!jar.isLocalHeader(entry.getOffset(), entry.getName().getBytes(ZipDirectory.UTF_8)))
+			{
+				logger.debug("Ignoring stale index of " + description);
+				return null;
+			}
+		}
+		return new IsolatedIndex(Collections.unmodifiableList(entries));
+	}
+
+	/*
+	 * Reads the index of the jar with the given root (jar:<url>!/), returning null if it has none.  Only jars on the file system can be checked
+	 * for a stale index, so this trusts it.
+	 */
+	static IsolatedIndex read(String jarRoot) throws IOException
+	{
+		InputStream input;
+		try
+		{
+			input = new URL(jarRoot + INDEX_PATH).openStream();
+		}
+		catch (FileNotFoundException e)
+		{
+			return null;
+		}
+		List<Entry> entries = parse(input, jarRoot);
+		return entries == null ? null : new IsolatedIndex(Collections.unmodifiableList(entries));
+	}
+
+	private static List<Entry> parse(InputStream input, String description) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, ZipDirectory.UTF_8));
+		try
+		{
+			String line = reader.readLine();
+			if (!VERSION_LINE.equals(line))
+			{
+				logger.debug("Ignoring index of " + description + " with unknown format " + line);
+				return null;
+			}
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 6)
+				{
+					logger.debug("Ignoring malformed index of " + description + ": " + line);
+					return null;
+				}
+				entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+						Long.parseLong(fields[4], 16), fields[5]));
+			}
+			return entries;
+		}
+		catch (NumberFormatException e)
+		{
+			logger.debug("Ignoring malformed index of " + description, e);
+			return null;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	List<Entry> getEntries()
+	{
+		return entries;
+	}
+
+	static final class Entry
+	{
+		private final String name;
+		private final long offset;
+		private final long compressedSize;
+		private final long size;
+		private final long crc;
+		private final String sha1;
+
+		Entry(final String name, final long offset, final long compressedSize, final long size, final long crc, final String sha1)
+		{
+			this.name = name;
+			this.offset = offset;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.crc = crc;
+			this.sha1 = sha1;
+		}
+
+		String getName()
+		{
+			return name;
+		}
+
+		long getOffset()
+		{
+			return offset;
+		}
+
+		long getCompressedSize()
+		{
+			return compressedSize;
+		}
+
+		long getSize()
+		{
+			return size;
+		}
+
+		long getCrc()
+		{
+			return crc;
+		}
+
+		String getSha1()
+		{
+			return sha1;
+		}
+	}
+}
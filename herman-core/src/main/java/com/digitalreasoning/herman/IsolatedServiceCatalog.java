@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Every isolated service visible to a class loader, found with a single pass over META-INF/isolated/.  Loaders for many service types can be
+ * built from one catalog rather than each of them looking through the same jars again:
+ *
+ * <pre>
+ * IsolatedServiceCatalog catalog = IsolatedServiceCatalog.scan();
+ * Iterable&lt;MyService&gt; services = catalog.builder(MyService.class).build();
+ * </pre>
+ *
+ * A catalog is a snapshot - jars added to the class path after the scan are not picked up.
+ */
+public class IsolatedServiceCatalog
+{
+	private final ClassLoader classLoader;
+	private final Map<String, Map<URL, List<URL>>> services;
+
+	private IsolatedServiceCatalog(final ClassLoader classLoader, final Map<String, Map<URL, List<URL>>> services)
+	{
+		this.classLoader = classLoader;
+		this.services = services;
+	}
+
+	public static IsolatedServiceCatalog scan() throws IOException
+	{
+		return scan(Thread.currentThread().getContextClassLoader());
+	}
+
+	public static IsolatedServiceCatalog scan(ClassLoader classLoader) throws IOException
+	{
+		return scan(classLoader, null);
+	}
+
+	/**
+	 * Scans the class loader's jars and directories in parallel on the given executor.
+	 */
+	public static IsolatedServiceCatalog scan(ClassLoader classLoader, ExecutorService executor) throws IOException
+	{
+		ResourceFinder resourceFinder = new ResourceFinder(classLoader, executor);
+		return new IsolatedServiceCatalog(classLoader, resourceFinder.getNestedJarsByDirectory(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX));
+	}
+
+	public ClassLoader getClassLoader()
+	{
+		return classLoader;
+	}
+
+	public Set<String> getServiceNames()
+	{
+		return Collections.unmodifiableSet(services.keySet());
+	}
+
+	/**
+	 * The nested jars of a service, keyed by the isolated root they were found in.  Empty if there are none.
+	 */
+	public Map<URL, List<URL>> getNestedJars(String serviceName)
+	{
+		Map<URL, List<URL>> nestedJars = services.get(serviceName);
+		return nestedJars == null ? Collections.<URL, List<URL>>emptyMap() : Collections.unmodifiableMap(nestedJars);
+	}
+
+	/**
+	 * A builder for a loader of the given service that takes its jars from this catalog.
+	 */
+	public <S> IsolatedServiceLoader.Builder<S> builder(Class<S> service)
+	{
+		return IsolatedServiceLoader.builder(service).catalog(this);
+	}
+}
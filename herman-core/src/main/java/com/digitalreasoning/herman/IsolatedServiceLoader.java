@@ -15,35 +15,64 @@
  */
 package com.digitalreasoning.herman;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.ServiceConfigurationError;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class IsolatedServiceLoader<S> implements Iterable<S>
+public class IsolatedServiceLoader<S> implements Iterable<S>, Closeable
 {
 	private static final Logger logger = LoggerFactory.getLogger(IsolatedServiceLoader.class);
 
 	public static final String ISOLATED_INTERFACE_PREFIX = "META-INF/isolated/";
+	private static final String SERVICES_PREFIX = "META-INF/services/";
 	private final Class<S> service;
 	private final ClassLoader classLoader;
 	private final Map<URL, List<URL>> serviceJars;
-	private final Map<URL, URLClassLoader> serviceClassLoaders;
+	private final ConcurrentMap<URL, URLClassLoader> serviceClassLoaders;
+	private final Map<URL, JarSharing.Shared> sharedJars;
+	// guarded by serviceClassLoaders
+	private final Map<List<String>, URLClassLoader> sharedClassLoaders;
 	private final String[] excludes;
 	private final String[] includes;
 	private final ServiceLoaderStrategy<S> serviceLoaderStrategy;
 	private final boolean loadFromLocal;
+	private final Memoizer<Object, List<S>> instances;
+	// the sources whose instances this thread is creating right now
+	private final ThreadLocal<Set<Object>> creatingInstances = new ThreadLocal<Set<Object>>();
+	private final AtomicBoolean closed = new AtomicBoolean();
 
 	private IsolatedServiceLoader(Class<S> service, ClassLoader classLoader, Map<URL, List<URL>> serviceJars, String[] excludes, final String[] includes,
-	                              final ServiceLoaderStrategy<S> serviceLoaderStrategy, final boolean loadFromLocal)
+	                              final ServiceLoaderStrategy<S> serviceLoaderStrategy, final boolean loadFromLocal, final Map<URL, JarSharing.Shared> sharedJars,
+	                              final boolean cacheInstances)
 	{
 		this.service = service;
 		this.classLoader = classLoader;
@@ -52,7 +81,10 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 		this.includes = includes;
 		this.serviceLoaderStrategy = serviceLoaderStrategy;
 		this.loadFromLocal = loadFromLocal;
-		this.serviceClassLoaders = new HashMap<URL, URLClassLoader>();
+		this.instances = cacheInstances ? new Memoizer<Object, List<S>>() : null;
+		this.serviceClassLoaders = new ConcurrentHashMap<URL, URLClassLoader>();
+		this.sharedJars = sharedJars;
+		this.sharedClassLoaders = new HashMap<List<String>, URLClassLoader>();
 		logger.info("Loading instance of service" + service.getName() + " from " + serviceJars + " isolated classloaders.");
 		for(URL isolatedRoot: serviceJars.keySet())
 		{
@@ -60,24 +92,23 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 		}
 	}
 
+	/**
+	 * Any number of threads may iterate at once.  Each isolated root's class loader is created exactly once, by whichever thread gets to it first,
+	 * and after that looking it up takes no lock.  A single iterator is not meant to be shared between threads.
+	 */
 	@Override
 	public Iterator<S> iterator()
 	{
+		if(closed.get())
+		{
+			throw new IllegalStateException("Loader for " + service.getName() + " has been closed.");
+		}
 		return new Iterator<S>() {
 			final Iterator<ClassLoaderSource> iterator;
 			Iterator<S> serviceIterator = null;
 
 			{
-				List<ClassLoaderSource> sources = new ArrayList<ClassLoaderSource>();
-				for(Map.Entry<URL, List<URL>> entry: serviceJars.entrySet())
-				{
-					sources.add(new IsolatedClassLoaderSource(classLoader, entry, serviceClassLoaders, includes, excludes));
-				}
-				if(loadFromLocal)
-				{
-					sources.add(new SimpleClassLoaderSource(classLoader));
-				}
-				iterator = sources.iterator();
+				iterator = getSources().iterator();
 				updateServiceIterator();
 			}
 
@@ -88,6 +119,11 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
                     if(iterator.hasNext())
                     {
                         ClassLoaderSource classLoaderSource = iterator.next();
+                        if(instances != null)
+                        {
+                            serviceIterator = getInstances(classLoaderSource).iterator();
+                            continue;
+                        }
 
                         ClassLoader previousContextClassloader = Thread.currentThread().getContextClassLoader();
                         ClassLoader serviceClassloader = classLoaderSource.getClassLoader();
@@ -145,6 +181,278 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 		};
 	}
 
+	private List<ClassLoaderSource> getSources()
+	{
+		List<ClassLoaderSource> sources = new ArrayList<ClassLoaderSource>();
+		for(Map.Entry<URL, List<URL>> entry: serviceJars.entrySet())
+		{
+			sources.add(new IsolatedClassLoaderSource(classLoader, entry, serviceClassLoaders, includes, excludes, sharedJars.get(entry.getKey()),
+					sharedClassLoaders, closed));
+		}
+		if(loadFromLocal)
+		{
+			sources.add(new SimpleClassLoaderSource(classLoader));
+		}
+		return sources;
+	}
+
+	/**
+	 * Loads the services of every isolated root at once rather than one root after another, creating the class loaders and the service instances
+	 * on the given executor.  There is one future per root, in the order that iterating would visit them, followed by one for the local class
+	 * loader if services are also loaded from there.  A root that fails to load fails only its own future.
+	 */
+	public List<Future<List<S>>> loadAllAsync(Executor executor)
+	{
+		if(closed.get())
+		{
+			throw new IllegalStateException("Loader for " + service.getName() + " has been closed.");
+		}
+		List<Future<List<S>>> results = new ArrayList<Future<List<S>>>();
+		for(final ClassLoaderSource classLoaderSource: getSources())
+		{
+			FutureTask<List<S>> task = new FutureTask<List<S>>(new Callable<List<S>>()
+			{
+				@Override
+				public List<S> call()
+				{
+					return instances == null ? loadAll(classLoaderSource) : getInstances(classLoaderSource);
+				}
+			});
+			executor.execute(task);
+			results.add(task);
+		}
+		return results;
+	}
+
+	/*
+	 * The cached services of one source, loading them if this is the first time they are asked for since the last reload.
+	 */
+	private List<S> getInstances(final ClassLoaderSource classLoaderSource)
+	{
+		final Object key = classLoaderSource.getKey();
+		Set<Object> creating = creatingInstances.get();
+		if(creating != null && creating.contains(key))
+		{
+			// waiting would be waiting on ourselves, and creating them again would only come back here
+			throw new IllegalStateException("The " + service.getName() + " services from " + classLoaderSource.getClassLoader()
+					+ " were asked for while they were being created - does a provider use the service loader in its constructor?");
+		}
+		try
+		{
+			return instances.get(key, new Callable<List<S>>()
+			{
+				@Override
+				public List<S> call()
+				{
+					Set<Object> creating = creatingInstances.get();
+					if(creating == null)
+					{
+						creating = new HashSet<Object>();
+						creatingInstances.set(creating);
+					}
+					creating.add(key);
+					try
+					{
+						return Collections.unmodifiableList(loadAll(classLoaderSource));
+					}
+					finally
+					{
+						creating.remove(key);
+						if(creating.isEmpty())
+						{
+							creatingInstances.remove();
+						}
+					}
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Tried to load from classloader " + classLoaderSource.getClassLoader(), e);
+		}
+	}
+
+	/**
+	 * Drops the cached service instances, so that they are created afresh the next time they are needed.  The class loaders are kept, as with
+	 * ServiceLoader.reload.  Does nothing unless instances are cached.
+	 */
+	public void reload()
+	{
+		if(instances != null)
+		{
+			instances.clear();
+		}
+	}
+
+	/*
+	 * Instantiates every service from one source with the source's class loader as the context class loader throughout.
+	 */
+	private List<S> loadAll(ClassLoaderSource classLoaderSource)
+	{
+		ClassLoader previousContextClassloader = Thread.currentThread().getContextClassLoader();
+		ClassLoader serviceClassloader = classLoaderSource.getClassLoader();
+		try
+		{
+			Thread.currentThread().setContextClassLoader(serviceClassloader);
+			List<S> services = new ArrayList<S>();
+			for(S next: serviceLoaderStrategy.runLoader(service, serviceClassloader))
+			{
+				services.add(next);
+			}
+			return services;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Tried to load from classloader " + serviceClassloader, e);
+		}
+		catch (LinkageError e)
+		{
+			throw new RuntimeException("Tried to load from classloader " + serviceClassloader, e);
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(previousContextClassloader);
+		}
+	}
+
+	/**
+	 * Releases the isolated class loaders.  Class loaders are shared by every service loader in the process with the same isolated root, class
+	 * loader and filters, and are kept until the last of those is closed - then they are closed and the nested jars extracted for them deleted,
+	 * unless another loader still uses them.  Services that were already loaded can't be expected to keep working afterwards, and should be dropped
+	 * along with the loader - see {@link #getUnreleasedClassLoaders()}.  Closing again does nothing.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(!closed.compareAndSet(false, true))
+		{
+			return;
+		}
+		List<URLClassLoader> classLoaders;
+		synchronized(serviceClassLoaders)
+		{
+			// roots before the shared loaders they sit on
+			classLoaders = new ArrayList<URLClassLoader>(serviceClassLoaders.values());
+			classLoaders.addAll(sharedClassLoaders.values());
+			serviceClassLoaders.clear();
+			sharedClassLoaders.clear();
+		}
+		// cached services would keep the class loaders alive
+		reload();
+		IOException failure = null;
+		for(URLClassLoader classLoader: classLoaders)
+		{
+			try
+			{
+				ClassLoaderRegistry.INSTANCE.release(classLoader);
+			}
+			catch (IOException e)
+			{
+				failure = failure == null ? e : failure;
+			}
+		}
+		if(failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Describes the class loaders of closed service loaders that are still reachable.  Each one keeps all of its classes in memory, and one that
+	 * doesn't go away is being held on to - by a service instance, a class, a thread local or a thread's context class loader.  Loaders that stay
+	 * reachable for a minute after they were closed are also logged as warnings; the herman.leakWarningDelay system property sets the delay in
+	 * milliseconds.
+	 */
+	public static List<String> getUnreleasedClassLoaders()
+	{
+		return LeakDetector.getUnreleased();
+	}
+
+	/**
+	 * Lists the providers of the service without loading or instantiating any of them, by reading the META-INF/services files of each isolated root
+	 * (and of the local class loader, when loading from there).  Nothing is loaded until {@link Provider#get()} is called, so picking one provider
+	 * out of many only costs that one.  Note that this reads the service files directly, as the default strategy does, whatever strategy the loader
+	 * was built with.
+	 */
+	public List<Provider<S>> providers() throws IOException
+	{
+		if(closed.get())
+		{
+			throw new IllegalStateException("Loader for " + service.getName() + " has been closed.");
+		}
+		String servicesFile = SERVICES_PREFIX + service.getName();
+		List<Provider<S>> providers = new ArrayList<Provider<S>>();
+		Iterator<ClassLoaderSource> sources = getSources().iterator();
+		for(Map.Entry<URL, List<URL>> entry: serviceJars.entrySet())
+		{
+			ClassLoaderSource source = sources.next();
+			for(URL jarUrl: entry.getValue())
+			{
+				for(String className: readProviderNames(toResourceUrl(jarUrl, servicesFile)))
+				{
+					providers.add(new Provider<S>(service, className, entry.getKey(), jarUrl, source));
+				}
+			}
+		}
+		if(loadFromLocal)
+		{
+			ClassLoaderSource source = sources.next();
+			for(URL url: Collections.list(classLoader.getResources(servicesFile)))
+			{
+				String location = url.toString();
+				URL jarUrl = new URL(location.substring(0, location.length() - servicesFile.length()));
+				for(String className: readProviderNames(url))
+				{
+					providers.add(new Provider<S>(service, className, null, jarUrl, source));
+				}
+			}
+		}
+		return providers;
+	}
+
+	private static URL toResourceUrl(URL jarUrl, String path) throws IOException
+	{
+		if(HermanUrlStreamHandler.PROTOCOL.equals(jarUrl.getProtocol()) || jarUrl.getPath().endsWith("/"))
+		{
+			return new URL(jarUrl, path);
+		}
+		return new URL("jar:" + jarUrl + HermanUrlStreamHandler.JAR_SEPARATOR + path);
+	}
+
+	/*
+	 * The class names in a services file, in the format ServiceLoader reads - one per line, with # starting a comment.  A missing file has none.
+	 */
+	private static List<String> readProviderNames(URL url) throws IOException
+	{
+		List<String> names = new ArrayList<String>();
+		BufferedReader reader;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(url.openStream(), ZipDirectory.UTF_8));
+		}
+		catch (FileNotFoundException e)
+		{
+			return names;
+		}
+		try
+		{
+			for(String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				int comment = line.indexOf('#');
+				String name = (comment == -1 ? line : line.substring(0, comment)).trim();
+				if(name.length() > 0 && !names.contains(name))
+				{
+					names.add(name);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return names;
+	}
+
 	public static <S> Builder<S> builder(Class<S> service)
 	{
 		return new Builder<S>(service);
@@ -158,6 +466,13 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 		private ClassLoader classLoader;
 		private ServiceLoaderStrategy<S> serviceLoaderStrategy = new ServiceLoaderStrategy.Default<S>();
 		private boolean loadFromLocal = false;
+		private boolean cacheInstances = false;
+		private boolean preExtract = false;
+		private ExecutorService extractionExecutor;
+		private IsolatedServiceCatalog catalog;
+		private boolean parallelDiscovery = false;
+		private ExecutorService discoveryExecutor;
+		private String[] shareJars;
 
 		private Builder(Class<S> service)
 		{
@@ -222,20 +537,265 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 			return this;
 		}
 
+		/**
+		 * Creates the services of each isolated root once and hands out the same instances to every iteration after that, until
+		 * {@link IsolatedServiceLoader#reload()}.  Safe for any number of threads - the first one to need a root's services creates them and the
+		 * rest wait for it.  A provider can't use the loader for its own root's services while they are being created: doing so throws an
+		 * IllegalStateException rather than waiting forever.
+		 */
+		public Builder<S> cacheInstances()
+		{
+			this.cacheInstances = true;
+			return this;
+		}
+
+		public Builder<S> preExtract()
+		{
+			this.preExtract = true;
+			return this;
+		}
+
+		public Builder<S> preExtract(ExecutorService extractionExecutor)
+		{
+			this.preExtract = true;
+			this.extractionExecutor = extractionExecutor;
+			return this;
+		}
+
+		/**
+		 * Looks through the class loader's jars and directories for the service in parallel rather than one after another.
+		 */
+		public Builder<S> parallelDiscovery()
+		{
+			this.parallelDiscovery = true;
+			return this;
+		}
+
+		public Builder<S> parallelDiscovery(ExecutorService discoveryExecutor)
+		{
+			this.parallelDiscovery = true;
+			this.discoveryExecutor = discoveryExecutor;
+			return this;
+		}
+
+		/**
+		 * Hosts nested jars that are byte-for-byte the same in several isolated roots once, in a loader the roots share, rather than loading their
+		 * classes again for every root.  Only jars whose file names match one of the patterns are considered, where * matches anything - guava-*.jar
+		 * say.  Shared jars are searched before a root's own jars and can't see them, so this is meant for third-party libraries, not for the jars
+		 * that provide the service.
+		 */
+		public Builder<S> shareJars(String... patterns)
+		{
+			this.shareJars = patterns;
+			return this;
+		}
+
+		public Builder<S> shareJars(Iterable<String> patterns)
+		{
+			this.shareJars = asArray(patterns);
+			return this;
+		}
+
+		/**
+		 * Takes the service's jars from a catalog instead of looking for them.  The catalog's class loader is used unless another one is given.
+		 */
+		public Builder<S> catalog(IsolatedServiceCatalog catalog)
+		{
+			this.catalog = catalog;
+			return this;
+		}
+
 		public IsolatedServiceLoader<S> build() throws IOException
 		{
 			this.excludes = this.excludes == null ? new String[0] : this.excludes;
 			this.includes = this.includes == null ? new String[0] : this.includes;
-			this.classLoader = this.classLoader == null ? Thread.currentThread().getContextClassLoader() : this.classLoader;
-			ResourceFinder resourceFinder = new ResourceFinder(this.classLoader);
-			Map<URL, List<URL>> serviceJars = resourceFinder.getNestedJars(ISOLATED_INTERFACE_PREFIX + this.service.getName());
-			return new IsolatedServiceLoader<S>(this.service, this.classLoader, serviceJars, this.excludes, this.includes, serviceLoaderStrategy, loadFromLocal);
+			Map<URL, List<URL>> serviceJars;
+			if(this.catalog != null)
+			{
+				this.classLoader = this.classLoader == null ? this.catalog.getClassLoader() : this.classLoader;
+				serviceJars = new LinkedHashMap<URL, List<URL>>(this.catalog.getNestedJars(this.service.getName()));
+			}
+			else
+			{
+				this.classLoader = this.classLoader == null ? Thread.currentThread().getContextClassLoader() : this.classLoader;
+				ExecutorService executor = parallelDiscovery && this.discoveryExecutor == null
+						? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+						: this.discoveryExecutor;
+				try
+				{
+					ResourceFinder resourceFinder = new ResourceFinder(this.classLoader, executor);
+					serviceJars = resourceFinder.getNestedJars(ISOLATED_INTERFACE_PREFIX + this.service.getName());
+				}
+				finally
+				{
+					if(executor != null && this.discoveryExecutor == null)
+					{
+						executor.shutdown();
+					}
+				}
+			}
+			if(preExtract)
+			{
+				prepareJars(serviceJars);
+			}
+			Map<URL, JarSharing.Shared> sharedJars = this.shareJars == null
+					? Collections.<URL, JarSharing.Shared>emptyMap()
+					: new JarSharing(this.shareJars).plan(serviceJars);
+			return new IsolatedServiceLoader<S>(this.service, this.classLoader, serviceJars, this.excludes, this.includes, serviceLoaderStrategy, loadFromLocal,
+					sharedJars, cacheInstances);
+		}
+
+		/*
+		 * Gets every nested jar ready up front, in parallel, rather than one at a time on whichever thread first loads a class from it.
+		 */
+		private void prepareJars(final Map<URL, List<URL>> serviceJars) throws IOException
+		{
+			List<URL> jarUrls = new ArrayList<URL>();
+			for(List<URL> urls: serviceJars.values())
+			{
+				jarUrls.addAll(urls);
+			}
+			if(jarUrls.isEmpty())
+			{
+				return;
+			}
+			ExecutorService executor = this.extractionExecutor == null
+					? Executors.newFixedThreadPool(Math.min(jarUrls.size(), Runtime.getRuntime().availableProcessors()))
+					: this.extractionExecutor;
+			try
+			{
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for(final URL jarUrl: jarUrls)
+				{
+					results.add(executor.submit(new Callable<Void>()
+					{
+						@Override
+						public Void call() throws IOException
+						{
+							HermanUrlStreamHandler.prepare(jarUrl);
+							return null;
+						}
+					}));
+				}
+				for(int i = 0; i < results.size(); i++)
+				{
+					try
+					{
+						results.get(i).get();
+					}
+					catch (ExecutionException e)
+					{
+						throw new IOException("Failed to extract " + jarUrls.get(i), e.getCause());
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while extracting nested jars.");
+					}
+				}
+			}
+			finally
+			{
+				if(this.extractionExecutor == null)
+				{
+					executor.shutdown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A provider of the service that hasn't been loaded yet.
+	 */
+	public static final class Provider<S>
+	{
+		private final Class<S> service;
+		private final String className;
+		private final URL isolatedRoot;
+		private final URL jar;
+		private final ClassLoaderSource classLoaderSource;
+
+		private Provider(final Class<S> service, final String className, final URL isolatedRoot, final URL jar, final ClassLoaderSource classLoaderSource)
+		{
+			this.service = service;
+			this.className = className;
+			this.isolatedRoot = isolatedRoot;
+			this.jar = jar;
+			this.classLoaderSource = classLoaderSource;
+		}
+
+		public String getClassName()
+		{
+			return className;
+		}
+
+		/**
+		 * The isolated root the provider comes from, or null if it comes from the local class loader.
+		 */
+		public URL getIsolatedRoot()
+		{
+			return isolatedRoot;
+		}
+
+		/**
+		 * The jar or directory whose services file names the provider.
+		 */
+		public URL getJar()
+		{
+			return jar;
+		}
+
+		/**
+		 * Loads the provider and creates a new instance of it, with its class loader as the context class loader.  Failures are reported the way
+		 * ServiceLoader reports them, with a ServiceConfigurationError.
+		 */
+		public S get()
+		{
+			ClassLoader previousContextClassloader = Thread.currentThread().getContextClassLoader();
+			ClassLoader serviceClassloader = classLoaderSource.getClassLoader();
+			try
+			{
+				Thread.currentThread().setContextClassLoader(serviceClassloader);
+				Class<?> providerClass = Class.forName(className, false, serviceClassloader);
+				if(!service.isAssignableFrom(providerClass))
+				{
+					throw new ServiceConfigurationError(service.getName() + ": Provider " + className + " not a subtype");
+				}
+				return service.cast(providerClass.newInstance());
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new ServiceConfigurationError(service.getName() + ": Provider " + className + " not found", e);
+			}
+			catch (InstantiationException e)
+			{
+				throw new ServiceConfigurationError(service.getName() + ": Provider " + className + " could not be instantiated", e);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new ServiceConfigurationError(service.getName() + ": Provider " + className + " could not be instantiated", e);
+			}
+			finally
+			{
+				Thread.currentThread().setContextClassLoader(previousContextClassloader);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return className + " from " + jar;
 		}
 	}
 
 	private static interface ClassLoaderSource
 	{
 		ClassLoader getClassLoader();
+
+		/*
+		 * Identifies the source across iterations, for caching its services.
+		 */
+		Object getKey();
 	}
 
 	private static class SimpleClassLoaderSource implements ClassLoaderSource
@@ -252,40 +812,125 @@ public class IsolatedServiceLoader<S> implements Iterable<S>
 		{
 			return this.classLoader;
 		}
+
+		@Override
+		public Object getKey()
+		{
+			return this.classLoader;
+		}
 	}
 
 	private static class IsolatedClassLoaderSource implements ClassLoaderSource
 	{
+		private static final String[] NO_FILTERS = new String[0];
+
 		private final ClassLoader parent;
 		private final Map.Entry<URL, List<URL>> entry;
 		private final Map<URL, URLClassLoader> classLoaderCache;
 		private final String[] includes;
 		private final String[] excludes;
+		private final JarSharing.Shared shared;
+		private final Map<List<String>, URLClassLoader> sharedClassLoaderCache;
+		private final AtomicBoolean closed;
 
 		private IsolatedClassLoaderSource(final ClassLoader parent, final Map.Entry<URL, List<URL>> entry, final Map<URL, URLClassLoader> classLoaderCache,
-		                                  final String[] includes, final String[] excludes)
+		                                  final String[] includes, final String[] excludes, final JarSharing.Shared shared,
+		                                  final Map<List<String>, URLClassLoader> sharedClassLoaderCache, final AtomicBoolean closed)
 		{
 			this.parent = parent;
 			this.entry = entry;
 			this.classLoaderCache = classLoaderCache;
 			this.includes = includes;
 			this.excludes = excludes;
+			this.shared = shared;
+			this.sharedClassLoaderCache = sharedClassLoaderCache;
+			this.closed = closed;
+		}
+
+		@Override
+		public Object getKey()
+		{
+			return entry.getKey();
 		}
 
 		@Override
 		public ClassLoader getClassLoader()
 		{
-			URLClassLoader ucl;
-			if(classLoaderCache.containsKey(entry.getKey()))
+			URLClassLoader ucl = classLoaderCache.get(entry.getKey());
+			if(ucl != null)
+			{
+				return ucl;
+			}
+			// creating the loader is rare, so one lock per service loader will do - it also keeps close from missing a loader made as it runs
+			synchronized(classLoaderCache)
 			{
+				if(closed.get())
+				{
+					throw new IllegalStateException("Loader for " + entry.getKey() + " has been closed.");
+				}
 				ucl = classLoaderCache.get(entry.getKey());
-			}else
+				if(ucl == null && shared == null)
+				{
+					ClassLoaderRegistry.Key key = new ClassLoaderRegistry.Key(entry.getKey().toString(), entry.getValue(), parent, includes, excludes);
+					ucl = acquire(key, entry.getKey(), entry.getValue(), parent, includes, excludes);
+					classLoaderCache.put(entry.getKey(), ucl);
+				}
+				else if(ucl == null)
+				{
+					URLClassLoader sharedClassLoader = getSharedClassLoader();
+					ClassLoaderRegistry.Key key = new ClassLoaderRegistry.Key(entry.getKey().toString(), shared.getOwnJars(), sharedClassLoader, NO_FILTERS,
+							NO_FILTERS);
+					ucl = acquire(key, entry.getKey(), shared.getOwnJars(), sharedClassLoader, null, null);
+					classLoaderCache.put(entry.getKey(), ucl);
+				}
+				return ucl;
+			}
+		}
+
+		/*
+		 * Only called with the class loader cache locked.
+		 */
+		private URLClassLoader getSharedClassLoader()
+		{
+			URLClassLoader sharedClassLoader = sharedClassLoaderCache.get(shared.getFingerprints());
+			if(sharedClassLoader == null)
+			{
+				// identical jars make for the same shared loader wherever they came from, so only their fingerprints identify it
+				List<URL> jarUrls = shared.getSharedJars();
+				ClassLoaderRegistry.Key key = new ClassLoaderRegistry.Key("shared " + shared.getFingerprints(), Collections.<URL>emptyList(), parent, includes,
+						excludes);
+				sharedClassLoader = acquire(key, jarUrls.get(0), jarUrls, parent, includes, excludes);
+				sharedClassLoaderCache.put(shared.getFingerprints(), sharedClassLoader);
+			}
+			return sharedClassLoader;
+		}
+
+		/*
+		 * Takes the loader from the process-wide registry.  Without filters the parent is used as is, for roots on top of a shared loader.
+		 */
+		private static URLClassLoader acquire(final ClassLoaderRegistry.Key key, final URL isolatedJarLocation, final List<URL> jarUrls,
+		                                      final ClassLoader parent, final String[] includes, final String[] excludes)
+		{
+			return ClassLoaderRegistry.INSTANCE.acquire(key, new ClassLoaderRegistry.Factory()
+			{
+				@Override
+				public URLClassLoader create()
+				{
+					URL[] urls = retain(jarUrls).toArray(new URL[jarUrls.size()]);
+					return includes == null
+							? new HermanClassLoader(urls, parent, isolatedJarLocation)
+							: new HermanClassLoader(urls, parent, isolatedJarLocation, includes, excludes);
+				}
+			});
+		}
+
+		private static List<URL> retain(List<URL> jarUrls)
+		{
+			for(URL jarUrl: jarUrls)
 			{
-				List<URL> jarUrls = entry.getValue();
-				ucl = new HermanClassLoader(jarUrls.toArray(new URL[jarUrls.size()]), parent, entry.getKey(), includes, excludes);
-				classLoaderCache.put(entry.getKey(), ucl);
+				HermanUrlStreamHandler.retain(jarUrl);
 			}
-			return ucl;
+			return jarUrls;
 		}
 	}
 }
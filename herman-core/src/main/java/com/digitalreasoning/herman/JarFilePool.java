@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+/*
+ * Open JarFile handles for extracted jars, capped at a maximum count.  When the cap is exceeded the least recently used handle is evicted - closed
+ * straight away if nobody is reading from it, or as soon as its last reader releases it.
+ */
+class JarFilePool
+{
+	private final int maxOpen;
+	private final Map<File, Handle> handles = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+
+	JarFilePool(final int maxOpen)
+	{
+		if (maxOpen < 1)
+		{
+			throw new IllegalArgumentException("At least one jar has to be allowed open, not " + maxOpen);
+		}
+		this.maxOpen = maxOpen;
+	}
+
+	Handle acquire(File file) throws IOException
+	{
+		synchronized (this)
+		{
+			Handle handle = handles.get(file);
+			if (handle != null)
+			{
+				handle.users++;
+				return handle;
+			}
+		}
+		// open outside of the lock so that one slow jar doesn't hold up lookups of the others
+		JarFile jarFile = new JarFile(file);
+		synchronized (this)
+		{
+			Handle handle = handles.get(file);
+			if (handle != null)
+			{
+				closeQuietly(jarFile);
+			}
+			else
+			{
+				handle = new Handle(jarFile);
+				handles.put(file, handle);
+				evict(maxOpen, handle);
+			}
+			handle.users++;
+			return handle;
+		}
+	}
+
+	synchronized void release(Handle handle)
+	{
+		handle.users--;
+		if (handle.users == 0 && handle.evicted)
+		{
+			closeQuietly(handle.jarFile);
+		}
+	}
+
+	synchronized void close(File file)
+	{
+		Handle handle = handles.remove(file);
+		if (handle != null)
+		{
+			evict(handle);
+		}
+	}
+
+	synchronized void closeAll()
+	{
+		evict(0, null);
+	}
+
+	synchronized int size()
+	{
+		return handles.size();
+	}
+
+	/*
+	 * Evicts least recently used handles until at most max are left, never evicting the one that is being acquired.
+	 */
+	private void evict(int max, Handle acquiring)
+	{
+		List<Handle> evicted = new ArrayList<Handle>();
+		Iterator<Handle> iterator = handles.values().iterator();
+		while (handles.size() > max && iterator.hasNext())
+		{
+			Handle handle = iterator.next();
+			if (handle != acquiring)
+			{
+				evicted.add(handle);
+				iterator.remove();
+			}
+		}
+		for (Handle handle : evicted)
+		{
+			evict(handle);
+		}
+	}
+
+	private void evict(Handle handle)
+	{
+		handle.evicted = true;
+		if (handle.users == 0)
+		{
+			closeQuietly(handle.jarFile);
+		}
+	}
+
+	private static void closeQuietly(JarFile jarFile)
+	{
+		try
+		{
+			jarFile.close();
+		}
+		catch (IOException e)
+		{
+			// purposefully do nothing - we're done with it either way.
+		}
+	}
+
+	static class Handle
+	{
+		private final JarFile jarFile;
+		private int users;
+		private boolean evicted;
+
+		private Handle(final JarFile jarFile)
+		{
+			this.jarFile = jarFile;
+		}
+
+		JarFile getJarFile()
+		{
+			return jarFile;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/*
+ * Works out which nested jars can be hosted once for several isolated roots.  A jar is shared when its file name matches one of the rules and a
+ * byte-identical copy (by SHA-1, taken from herman.index when the outer jar has one) turns up in at least one other root.  Roots that share exactly the same jars get one shared loader between them;
+ * everything else stays in the root's own loader.
+ */
+final class JarSharing
+{
+	// keyed by the path, size and modification time of the jar they were read from, and the nested jar's entry name where there is one
+	private static final Memoizer<String, String> digests = new Memoizer<String, String>();
+	// the digests in the index of each outer jar, by entry name - empty for jars without an index
+	private static final Memoizer<String, Map<String, String>> indexedDigests = new Memoizer<String, Map<String, String>>();
+
+	private final Pattern[] rules;
+
+	JarSharing(final String[] patterns)
+	{
+		this.rules = new Pattern[patterns.length];
+		for (int i = 0; i < patterns.length; i++)
+		{
+			rules[i] = compile(patterns[i]);
+		}
+	}
+
+	/*
+	 * Rules are file names where * matches anything, guava-*.jar say.
+	 */
+	private static Pattern compile(String pattern)
+	{
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int star = pattern.indexOf('*'); star != -1; star = pattern.indexOf('*', start))
+		{
+			regex.append(Pattern.quote(pattern.substring(start, star))).append(".*");
+			start = star + 1;
+		}
+		regex.append(Pattern.quote(pattern.substring(start)));
+		return Pattern.compile(regex.toString());
+	}
+
+	boolean isShareable(URL jarUrl)
+	{
+		String name = getFileName(jarUrl);
+		for (Pattern rule : rules)
+		{
+			if (rule.matcher(name).matches())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getFileName(URL jarUrl)
+	{
+		String url = jarUrl.toString();
+		if (url.endsWith(HermanUrlStreamHandler.HERMAN_SEPARATOR))
+		{
+			url = url.substring(0, url.length() - HermanUrlStreamHandler.HERMAN_SEPARATOR.length());
+		}
+		return url.substring(url.lastIndexOf('/') + 1);
+	}
+
+	/*
+	 * Splits each root's jars into the shared ones and its own.  Roots with nothing to share are left out of the result.
+	 */
+	Map<URL, Shared> plan(Map<URL, List<URL>> serviceJars) throws IOException
+	{
+		Map<URL, List<String>> fingerprints = new HashMap<URL, List<String>>();
+		Map<String, URL> firstCopies = new HashMap<String, URL>();
+		Map<String, Set<URL>> roots = new HashMap<String, Set<URL>>();
+		for (Map.Entry<URL, List<URL>> entry : serviceJars.entrySet())
+		{
+			List<String> rootFingerprints = new ArrayList<String>();
+			for (URL jarUrl : entry.getValue())
+			{
+				String fingerprint = isShareable(jarUrl) ? fingerprint(jarUrl) : null;
+				rootFingerprints.add(fingerprint);
+				if (fingerprint != null)
+				{
+					if (!firstCopies.containsKey(fingerprint))
+					{
+						firstCopies.put(fingerprint, jarUrl);
+						roots.put(fingerprint, new HashSet<URL>());
+					}
+					roots.get(fingerprint).add(entry.getKey());
+				}
+			}
+			fingerprints.put(entry.getKey(), rootFingerprints);
+		}
+
+		Map<URL, Shared> plan = new LinkedHashMap<URL, Shared>();
+		for (Map.Entry<URL, List<URL>> entry : serviceJars.entrySet())
+		{
+			List<String> rootFingerprints = fingerprints.get(entry.getKey());
+			List<String> sharedFingerprints = new ArrayList<String>();
+			List<URL> sharedJars = new ArrayList<URL>();
+			List<URL> ownJars = new ArrayList<URL>();
+			for (int i = 0; i < rootFingerprints.size(); i++)
+			{
+				String fingerprint = rootFingerprints.get(i);
+				if (fingerprint != null && roots.get(fingerprint).size() > 1)
+				{
+					if (!sharedFingerprints.contains(fingerprint))
+					{
+						sharedFingerprints.add(fingerprint);
+						sharedJars.add(firstCopies.get(fingerprint));
+					}
+				}
+				else
+				{
+					ownJars.add(entry.getValue().get(i));
+				}
+			}
+			if (!sharedJars.isEmpty())
+			{
+				plan.put(entry.getKey(), new Shared(sharedFingerprints, sharedJars, ownJars));
+			}
+		}
+		return plan;
+	}
+
+	/*
+	 * The SHA-1 of a jar's contents.  A jar nested in an indexed jar on the file system has it in the index already; anything else is hashed, once
+	 * for as long as the jar it was read from keeps its size and modification time.
+	 */
+	private static String fingerprint(URL jarUrl) throws IOException
+	{
+		final URL source;
+		String key = null;
+		if (HermanUrlStreamHandler.PROTOCOL.equals(jarUrl.getProtocol()))
+		{
+			HermanUrl.NestedJar jar = HermanUrl.parse(jarUrl).getJar();
+			source = new URL(jar.getUrl());
+			File outerFile = jar.getOuterFile();
+			if (outerFile != null)
+			{
+				String indexed = getIndexedDigests(outerFile).get(jar.getEntryName());
+				if (indexed != null)
+				{
+					return indexed;
+				}
+				key = stamp(outerFile) + '\t' + jar.getEntryName();
+			}
+		}
+		else
+		{
+			source = jarUrl;
+			if ("file".equals(jarUrl.getProtocol()))
+			{
+				key = stamp(toFile(jarUrl));
+			}
+		}
+		Callable<String> hash = new Callable<String>()
+		{
+			@Override
+			public String call() throws IOException
+			{
+				return hash(source);
+			}
+		};
+		return key == null ? hash(source) : digests.get(key, hash);
+	}
+
+	private static Map<String, String> getIndexedDigests(final File outerFile) throws IOException
+	{
+		return indexedDigests.get(stamp(outerFile), new Callable<Map<String, String>>()
+		{
+			@Override
+			public Map<String, String> call() throws IOException
+			{
+				Map<String, String> digests = new HashMap<String, String>();
+				if (outerFile.isFile() && outerFile.length() <= Integer.MAX_VALUE)
+				{
+					IsolatedIndex index = IsolatedIndex.read(HermanUrlStreamHandler.mapOuterJar(outerFile), outerFile.toString());
+					if (index != null)
+					{
+						for (IsolatedIndex.Entry entry : index.getEntries())
+						{
+							digests.put(entry.getName(), entry.getSha1());
+						}
+					}
+				}
+				return digests;
+			}
+		});
+	}
+
+	private static String stamp(File file)
+	{
+		return file.getPath() + '\t' + file.length() + '\t' + file.lastModified();
+	}
+
+	private static File toFile(URL url)
+	{
+		try
+		{
+			return new File(url.toURI());
+		}
+		catch (URISyntaxException e)
+		{
+			return new File(url.getPath());
+		}
+	}
+
+	private static String hash(URL source) throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			InputStream input = source.openStream();
+			try
+			{
+				byte[] buffer = new byte[8192];
+				for (int n = input.read(buffer); n != -1; n = input.read(buffer))
+				{
+					digest.update(buffer, 0, n);
+				}
+			}
+			finally
+			{
+				input.close();
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+			{
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * A root's split.  The fingerprints identify the shared loader - roots with equal fingerprint lists get the same one.
+	 */
+	static final class Shared
+	{
+		private final List<String> fingerprints;
+		private final List<URL> sharedJars;
+		private final List<URL> ownJars;
+
+		private Shared(final List<String> fingerprints, final List<URL> sharedJars, final List<URL> ownJars)
+		{
+			this.fingerprints = Collections.unmodifiableList(fingerprints);
+			this.sharedJars = Collections.unmodifiableList(sharedJars);
+			this.ownJars = Collections.unmodifiableList(ownJars);
+		}
+
+		List<String> getFingerprints()
+		{
+			return fingerprints;
+		}
+
+		List<URL> getSharedJars()
+		{
+			return sharedJars;
+		}
+
+		List<URL> getOwnJars()
+		{
+			return ownJars;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Keeps track of class loaders that have been closed but not yet collected.  A closed loader that stays reachable is usually held on to by a
+ * service instance, a class, a thread local or a thread context class loader that outlived it, and it keeps every class it loaded in memory.
+ * Loaders still around a while after they were closed are logged, once each, by a check scheduled for when the delay is up.
+ */
+final class LeakDetector
+{
+	private static final Logger logger = LoggerFactory.getLogger(LeakDetector.class);
+
+	static final String WARNING_DELAY_PROPERTY = "herman.leakWarningDelay";
+	private static final long DEFAULT_WARNING_DELAY = 60000;
+
+	private static final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+	private static final Set<Watched> watched = new LinkedHashSet<Watched>();
+	private static Timer timer;
+	private static long watchedCount;
+
+	private LeakDetector()
+	{
+	}
+
+	static synchronized void watch(ClassLoader classLoader)
+	{
+		expunge();
+		watched.add(new Watched(classLoader, ++watchedCount));
+		getTimer().schedule(new ReportTask(), getWarningDelay() + 1);
+	}
+
+	static synchronized List<String> getUnreleased()
+	{
+		expunge();
+		List<String> unreleased = new ArrayList<String>();
+		for (Watched reference : watched)
+		{
+			unreleased.add(reference.description);
+		}
+		return unreleased;
+	}
+
+	static synchronized void report()
+	{
+		expunge();
+		long cutoff = System.currentTimeMillis() - getWarningDelay();
+		for (Watched reference : watched)
+		{
+			if (!reference.reported && reference.closed < cutoff)
+			{
+				reference.reported = true;
+				logger.warn(reference.description + " was closed " + (System.currentTimeMillis() - reference.closed)
+						+ "ms ago but is still reachable.  Something still refers to it or to one of its classes.");
+			}
+		}
+	}
+
+	private static long getWarningDelay()
+	{
+		return Math.max(0, Long.getLong(WARNING_DELAY_PROPERTY, DEFAULT_WARNING_DELAY));
+	}
+
+	/*
+	 * The timer's thread inherits the context class loader of whoever creates it, which must not be one of the loaders being watched.
+	 */
+	private static Timer getTimer()
+	{
+		if (timer == null)
+		{
+			Thread thread = Thread.currentThread();
+			ClassLoader contextClassLoader = thread.getContextClassLoader();
+			thread.setContextClassLoader(LeakDetector.class.getClassLoader());
+			try
+			{
+				timer = new Timer("herman-leak-detector", true);
+			}
+			finally
+			{
+				thread.setContextClassLoader(contextClassLoader);
+			}
+		}
+		return timer;
+	}
+
+	private static void expunge()
+	{
+		for (Reference<? extends ClassLoader> reference = queue.poll(); reference != null; reference = queue.poll())
+		{
+			watched.remove(reference);
+		}
+	}
+
+	private static final class Watched extends WeakReference<ClassLoader>
+	{
+		private final String description;
+		private final long closed = System.currentTimeMillis();
+		private boolean reported;
+
+		private Watched(final ClassLoader classLoader, final long number)
+		{
+			super(classLoader, queue);
+			// loaders from the same place describe themselves the same way, so number them to tell them apart
+			this.description = classLoader + " (#" + number + ")";
+		}
+	}
+
+	private static final class ReportTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			report();
+		}
+	}
+}
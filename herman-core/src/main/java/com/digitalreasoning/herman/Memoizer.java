@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/*
+ * A concurrent cache that computes the value for a key at most once.  The first caller for a key runs the computation on its own thread and
+ * everyone else asking for that key waits for its result, while callers for other keys proceed independently.  A failed computation is not
+ * cached, so the next caller tries again.
+ */
+class Memoizer<K, V>
+{
+	private final ConcurrentMap<K, Future<V>> cache = new ConcurrentHashMap<K, Future<V>>();
+
+	V get(K key, Callable<V> computation) throws IOException
+	{
+		Future<V> future = cache.get(key);
+		if (future == null)
+		{
+			FutureTask<V> task = new FutureTask<V>(computation);
+			future = cache.putIfAbsent(key, task);
+			if (future == null)
+			{
+				future = task;
+				task.run();
+			}
+		}
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + key);
+		}
+		catch (ExecutionException e)
+		{
+			cache.remove(key, future);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new IOException("Failed to compute value for " + key, cause);
+		}
+	}
+
+	void remove(K key)
+	{
+		cache.remove(key);
+	}
+
+	/*
+	 * The keys with a value computed or being computed, for callers that need to remove entries by something other than their key.
+	 */
+	Collection<K> keys()
+	{
+		return cache.keySet();
+	}
+
+	void clear()
+	{
+		cache.clear();
+	}
+}
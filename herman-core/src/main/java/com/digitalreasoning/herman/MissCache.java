@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * The most recent names a class loader failed to find, so that repeated probes for them can be answered without going through the parents and
+ * jars again.  Once over capacity the oldest miss is forgotten first.
+ *
+ * Clearing starts a new generation.  A lookup that began before the clear must not record its miss, since it may have missed something that is
+ * there now - so callers take the generation before looking and pass it to add.  Adding and clearing hold the cache's lock, so that check and
+ * the bookkeeping can't interleave with a clear; contains doesn't need it.
+ */
+class MissCache
+{
+	private final int capacity;
+	private final ConcurrentMap<String, Boolean> misses = new ConcurrentHashMap<String, Boolean>();
+	// guarded by this
+	private final Queue<String> order = new ArrayDeque<String>();
+	private volatile int generation;
+
+	MissCache(final int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	boolean contains(String name)
+	{
+		return misses.containsKey(name);
+	}
+
+	int generation()
+	{
+		return generation;
+	}
+
+	synchronized void add(String name, int lookupGeneration)
+	{
+		if (capacity <= 0 || lookupGeneration != generation)
+		{
+			return;
+		}
+		if (misses.putIfAbsent(name, Boolean.TRUE) == null)
+		{
+			order.add(name);
+			if (order.size() > capacity)
+			{
+				misses.remove(order.poll());
+			}
+		}
+	}
+
+	synchronized void clear()
+	{
+		generation++;
+		misses.clear();
+		order.clear();
+	}
+
+	int size()
+	{
+		return misses.size();
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/*
+ * Which of a class loader's jars hold which packages, so that a class or resource is looked for only in the jars that have its package rather
+ * than in every jar in turn.  Packages are keyed in resource form (com/example), with "" for the root.
+ *
+ * Only plain jars can be indexed - nested jars behind herman urls and jars on the file system.  Directories, signed jars (whose classes need
+ * the verification that only URLClassLoader does) and jars with a manifest Class-Path make build return null and leave the lookups to
+ * URLClassLoader.
+ */
+final class PackageIndex
+{
+	private static final byte[] META_INF = "META-INF/".getBytes(ZipDirectory.UTF_8);
+	private static final Jar[] NO_JARS = new Jar[0];
+
+	private final Map<String, Jar[]> packages;
+
+	private PackageIndex(final Map<String, Jar[]> packages)
+	{
+		this.packages = packages;
+	}
+
+	static PackageIndex build(URL[] urls) throws IOException
+	{
+		Map<String, Set<Jar>> packages = new HashMap<String, Set<Jar>>();
+		for (URL url : urls)
+		{
+			Jar jar = open(url);
+			if (jar == null || hasClassPath(jar))
+			{
+				return null;
+			}
+			ZipDirectory directory = jar.directory;
+			for (int i = 0; i < directory.size(); i++)
+			{
+				String name = directory.getName(i);
+				if (directory.nameStartsWith(i, META_INF) && name.toUpperCase().endsWith(".SF"))
+				{
+					return null;
+				}
+				String packageName = getPackage(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+				Set<Jar> jars = packages.get(packageName);
+				if (jars == null)
+				{
+					// jars keep the class loader's search order
+					jars = new LinkedHashSet<Jar>();
+					packages.put(packageName, jars);
+				}
+				jars.add(jar);
+			}
+		}
+		Map<String, Jar[]> index = new HashMap<String, Jar[]>(packages.size() * 2);
+		for (Map.Entry<String, Set<Jar>> entry : packages.entrySet())
+		{
+			index.put(entry.getKey(), entry.getValue().toArray(new Jar[entry.getValue().size()]));
+		}
+		return new PackageIndex(index);
+	}
+
+	private static Jar open(URL url) throws IOException
+	{
+		if (HermanUrlStreamHandler.PROTOCOL.equals(url.getProtocol()))
+		{
+			ZipDirectory directory = HermanUrlStreamHandler.getDirectory(url);
+			return directory == null ? null : new Jar(url, url.toString(), directory);
+		}
+		if ("file".equals(url.getProtocol()))
+		{
+			File file;
+			try
+			{
+				file = new File(url.toURI());
+			}
+			catch (URISyntaxException e)
+			{
+				file = new File(url.getPath());
+			}
+			if (file.isFile() && file.length() <= Integer.MAX_VALUE)
+			{
+				return new Jar(url, "jar:" + url + HermanUrlStreamHandler.JAR_SEPARATOR, ZipDirectory.map(file));
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * URLClassLoader also searches the jars a manifest's Class-Path names, which the index doesn't know about.
+	 */
+	private static boolean hasClassPath(Jar jar) throws IOException
+	{
+		Manifest manifest = jar.getManifest();
+		return manifest != null && manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) != null;
+	}
+
+	private static String getPackage(String path)
+	{
+		int slash = path.lastIndexOf('/');
+		return slash == -1 ? "" : path.substring(0, slash);
+	}
+
+	/*
+	 * The jars, in search order, that hold anything in the same package as the given resource path.
+	 */
+	Jar[] getJars(String path)
+	{
+		Jar[] jars = packages.get(getPackage(path));
+		return jars == null ? NO_JARS : jars;
+	}
+
+	static final class Jar
+	{
+		private final URL url;
+		private final String resourcePrefix;
+		private final ZipDirectory directory;
+		private final CodeSource codeSource;
+		private volatile Manifest manifest;
+		private volatile boolean manifestRead;
+
+		private Jar(final URL url, final String resourcePrefix, final ZipDirectory directory)
+		{
+			this.url = url;
+			this.resourcePrefix = resourcePrefix;
+			this.directory = directory;
+			this.codeSource = new CodeSource(url, (CodeSigner[]) null);
+		}
+
+		URL getUrl()
+		{
+			return url;
+		}
+
+		CodeSource getCodeSource()
+		{
+			return codeSource;
+		}
+
+		int find(String path)
+		{
+			return directory.indexOf(path);
+		}
+
+		URL getResource(String path) throws MalformedURLException
+		{
+			return new URL(resourcePrefix + path);
+		}
+
+		byte[] read(int entry) throws IOException
+		{
+			byte[] bytes = new byte[directory.getSize(entry)];
+			InputStream input = directory.getInputStream(entry);
+			try
+			{
+				int offset = 0;
+				while (offset < bytes.length)
+				{
+					int n = input.read(bytes, offset, bytes.length - offset);
+					if (n == -1)
+					{
+						throw new IOException("Unexpected end of " + url + " in entry " + directory.getName(entry));
+					}
+					offset += n;
+				}
+				return bytes;
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+
+		Manifest getManifest() throws IOException
+		{
+			if (!manifestRead)
+			{
+				int entry = directory.indexOf(JarFile.MANIFEST_NAME);
+				if (entry != -1)
+				{
+					InputStream input = directory.getInputStream(entry);
+					try
+					{
+						manifest = new Manifest(input);
+					}
+					finally
+					{
+						input.close();
+					}
+				}
+				manifestRead = true;
+			}
+			return manifest;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Include and exclude prefix filters compiled into a single trie, so that a name is checked against all of them in one pass over its characters.
+ * Filters are package style (com.example.), with '/' treated the same as '.'.  Class names are matched as they are; resource names have their '/'
+ * matched against the '.' of the filters, and their own '.' against nothing, just as if the filters had been rewritten with slashes.
+ *
+ * The trie is flattened into arrays - node n's edges are edgeChars/edgeTargets[edgeStart[n]..edgeStart[n + 1]), sorted by character - so a lookup
+ * allocates nothing.
+ */
+final class PrefixMatcher
+{
+	private static final byte INCLUDE = 1;
+	private static final byte EXCLUDE = 2;
+	// some exclude filter ends at or below this node
+	private static final byte EXCLUDE_BELOW = 4;
+
+	private final boolean hasIncludes;
+	private final byte[] flags;
+	private final int[] edgeStart;
+	private final char[] edgeChars;
+	private final int[] edgeTargets;
+
+	private PrefixMatcher(final boolean hasIncludes, final byte[] flags, final int[] edgeStart, final char[] edgeChars, final int[] edgeTargets)
+	{
+		this.hasIncludes = hasIncludes;
+		this.flags = flags;
+		this.edgeStart = edgeStart;
+		this.edgeChars = edgeChars;
+		this.edgeTargets = edgeTargets;
+	}
+
+	/*
+	 * Either array may be null or empty.  No includes means everything that isn't excluded is included.
+	 */
+	static PrefixMatcher compile(String[] includes, String[] excludes)
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(new Node());
+		add(nodes, includes, INCLUDE);
+		add(nodes, excludes, EXCLUDE);
+
+		byte[] flags = new byte[nodes.size()];
+		int[] edgeStart = new int[nodes.size() + 1];
+		char[] edgeChars = new char[nodes.size() - 1];
+		int[] edgeTargets = new int[nodes.size() - 1];
+		int edge = 0;
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			Node node = nodes.get(i);
+			flags[i] = node.flags;
+			edgeStart[i] = edge;
+			for (Map.Entry<Character, Integer> child : node.children.entrySet())
+			{
+				edgeChars[edge] = child.getKey();
+				edgeTargets[edge] = child.getValue();
+				edge++;
+			}
+		}
+		edgeStart[nodes.size()] = edge;
+		// children always come after their parents, so one backwards pass carries the exclusions up the trie
+		for (int i = nodes.size() - 1; i >= 0; i--)
+		{
+			if ((flags[i] & EXCLUDE) != 0)
+			{
+				flags[i] |= EXCLUDE_BELOW;
+			}
+			for (int e = edgeStart[i]; e < edgeStart[i + 1]; e++)
+			{
+				flags[i] |= flags[edgeTargets[e]] & EXCLUDE_BELOW;
+			}
+		}
+		return new PrefixMatcher(includes != null && includes.length > 0, flags, edgeStart, edgeChars, edgeTargets);
+	}
+
+	private static void add(List<Node> nodes, String[] filters, byte flag)
+	{
+		if (filters == null)
+		{
+			return;
+		}
+		for (String filter : filters)
+		{
+			if (filter.endsWith("*"))
+			{
+				filter = filter.substring(0, filter.length() - 1);
+			}
+			int node = 0;
+			for (int i = 0; i < filter.length(); i++)
+			{
+				char c = filter.charAt(i) == '/' ? '.' : filter.charAt(i);
+				Integer child = nodes.get(node).children.get(c);
+				if (child == null)
+				{
+					child = nodes.size();
+					nodes.add(new Node());
+					nodes.get(node).children.put(c, child);
+				}
+				node = child;
+			}
+			nodes.get(node).flags |= flag;
+		}
+	}
+
+	boolean isIncluded(String name, boolean asResource)
+	{
+		boolean included = !hasIncludes;
+		int node = 0;
+		for (int i = 0; ; i++)
+		{
+			byte nodeFlags = flags[node];
+			if ((nodeFlags & EXCLUDE) != 0)
+			{
+				return false;
+			}
+			included |= (nodeFlags & INCLUDE) != 0;
+			if (included && (nodeFlags & EXCLUDE_BELOW) == 0)
+			{
+				return true;
+			}
+			if (i == name.length())
+			{
+				return included;
+			}
+			char c = name.charAt(i);
+			if (asResource)
+			{
+				// the trie has no '/' edges, so this sends a resource's '.' nowhere
+				c = c == '/' ? '.' : c == '.' ? '/' : c;
+			}
+			node = child(node, c);
+			if (node == -1)
+			{
+				return included;
+			}
+		}
+	}
+
+	private int child(int node, char c)
+	{
+		int low = edgeStart[node];
+		int high = edgeStart[node + 1] - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			char middleChar = edgeChars[middle];
+			if (middleChar < c)
+			{
+				low = middle + 1;
+			}
+			else if (middleChar > c)
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return edgeTargets[middle];
+			}
+		}
+		return -1;
+	}
+
+	private static class Node
+	{
+		private final Map<Character, Integer> children = new TreeMap<Character, Integer>();
+		private byte flags;
+	}
+}
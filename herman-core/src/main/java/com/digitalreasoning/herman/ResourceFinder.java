@@ -16,16 +16,27 @@
 package com.digitalreasoning.herman;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -40,67 +51,250 @@ class ResourceFinder
 		HermanUrlStreamHandler.register();
 	}
 
+	// discovery results by class loader and the uri looked up, reused for as long as the class loader lists the same locations and the jars and
+	// directories they were read from are unchanged.
+	private static final Map<ClassLoader, ConcurrentMap<String, Discovery<?>>> discoveries =
+			Collections.synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, Discovery<?>>>());
+
 	private final ClassLoader classLoader;
+	private final ExecutorService executor;
 
 	public ResourceFinder()
 	{
-		this.classLoader = Thread.currentThread().getContextClassLoader();
+		this(Thread.currentThread().getContextClassLoader());
 	}
 
 	public ResourceFinder(ClassLoader classLoader)
+	{
+		this(classLoader, null);
+	}
+
+	/*
+	 * A finder that scans the class loader's locations in parallel on the given executor.
+	 */
+	public ResourceFinder(ClassLoader classLoader, ExecutorService executor)
 	{
 		this.classLoader = classLoader;
+		this.executor = executor;
 	}
 
 	public Map<URL, List<URL>> getNestedJars(String uri) throws IOException
 	{
-		Map<URL, List<URL>> resources = new HashMap<URL, List<URL>>();
 		if (!uri.endsWith("/"))
 		{
 			uri += "/";
 		}
-		Enumeration<URL> urls = classLoader.getResources(uri);
+		String key = "jars:" + uri;
+		List<URL> locations = Collections.list(classLoader.getResources(uri));
+		Map<URL, List<URL>> cached = getCachedDiscovery(key, locations);
+		if (cached != null)
+		{
+			return cached;
+		}
+		final String basePath = uri;
+		List<Stamp> stamps = new ArrayList<Stamp>();
+		Map<URL, List<URL>> resources = scanLocations(uri, locations, stamps, new LocationScanner<List<URL>>()
+		{
+			@Override
+			public List<URL> scanJar(final URL location, final List<Stamp> stamps) throws IOException
+			{
+				List<URL> jarUrls = readJarEntries(location, basePath);
+				return jarUrls.isEmpty() ? null : Collections.unmodifiableList(jarUrls);
+			}
+
+			@Override
+			public List<URL> scanDirectory(final URL location, final List<Stamp> stamps) throws IOException
+			{
+				List<URL> jarUrls = listJarFiles(location);
+				return jarUrls == null ? null : Collections.unmodifiableList(jarUrls);
+			}
+		});
+		return putCachedDiscovery(key, Collections.unmodifiableMap(resources), locations, stamps);
+	}
 
-		while (urls.hasMoreElements())
+	/*
+	 * Finds the nested jars of every directory under uri at once, keyed by directory name.  The values are the same as getNestedJars would return
+	 * for each directory, but every jar is only looked at once.
+	 */
+	public Map<String, Map<URL, List<URL>>> getNestedJarsByDirectory(String uri) throws IOException
+	{
+		if (!uri.endsWith("/"))
+		{
+			uri += "/";
+		}
+		String key = "directories:" + uri;
+		List<URL> locations = Collections.list(classLoader.getResources(uri));
+		Map<String, Map<URL, List<URL>>> cached = getCachedDiscovery(key, locations);
+		if (cached != null)
+		{
+			return cached;
+		}
+		final String basePath = uri;
+		List<Stamp> stamps = new ArrayList<Stamp>();
+		Map<URL, Map<String, Map<URL, List<URL>>>> found = scanLocations(uri, locations, stamps, new LocationScanner<Map<String, Map<URL, List<URL>>>>()
 		{
-			URL location = urls.nextElement();
+			@Override
+			public Map<String, Map<URL, List<URL>>> scanJar(final URL location, final List<Stamp> stamps) throws IOException
+			{
+				Map<String, Map<URL, List<URL>>> resources = new LinkedHashMap<String, Map<URL, List<URL>>>();
+				for(Map.Entry<String, List<URL>> directory: readJarDirectories(location, basePath).entrySet())
+				{
+					put(resources, directory.getKey(), new URL(location.toString() + directory.getKey() + "/"), directory.getValue());
+				}
+				return resources;
+			}
 
-			try
+			@Override
+			public Map<String, Map<URL, List<URL>>> scanDirectory(final URL location, final List<Stamp> stamps) throws IOException
 			{
-				if (location.getProtocol().equals("jar"))
+				Map<String, Map<URL, List<URL>>> resources = new LinkedHashMap<String, Map<URL, List<URL>>>();
+				File[] directories = toFile(location).listFiles(new FileFilter()
 				{
-					List<URL> jarUrls = readJarEntries(location, uri);
-					if(!jarUrls.isEmpty())
+					@Override
+					public boolean accept(final File file)
 					{
-						resources.put(location, jarUrls);
+						return file.isDirectory();
 					}
-				}
-				else if (location.getProtocol().equals("file"))
+				});
+				if(directories != null)
 				{
-					File root;
-					try {
-						root = new File(location.toURI());
-					} catch(URISyntaxException e) {
-						root = new File(location.getPath());
-					}
-					final File[] jarFiles = root.listFiles(new FilenameFilter()
+					Arrays.sort(directories);
+					for(File directory: directories)
 					{
-						@Override
-						public boolean accept(final File dir, final String name)
+						addStamp(stamps, directory);
+						URL directoryUrl = directory.toURI().toURL();
+						List<URL> jarUrls = listJarFiles(directoryUrl);
+						if(jarUrls != null)
 						{
-							return name.endsWith(".jar");
+							put(resources, directory.getName(), directoryUrl, jarUrls);
 						}
-					});
-					if(jarFiles != null)
-					{
-						List<URL> jarUrls = new ArrayList<URL>();
-						for(File file: jarFiles)
-						{
-							jarUrls.add(file.toURI().toURL());
-						}
-						resources.put(location, jarUrls);
 					}
 				}
+				return resources;
+			}
+		});
+
+		Map<String, Map<URL, List<URL>>> resources = new LinkedHashMap<String, Map<URL, List<URL>>>();
+		for(Map<String, Map<URL, List<URL>>> locationResources: found.values())
+		{
+			for(Map.Entry<String, Map<URL, List<URL>>> directory: locationResources.entrySet())
+			{
+				for(Map.Entry<URL, List<URL>> entry: directory.getValue().entrySet())
+				{
+					put(resources, directory.getKey(), entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for(Map.Entry<String, Map<URL, List<URL>>> directory: resources.entrySet())
+		{
+			directory.setValue(Collections.unmodifiableMap(directory.getValue()));
+		}
+		return putCachedDiscovery(key, Collections.unmodifiableMap(resources), locations, stamps);
+	}
+
+	private interface LocationScanner<T>
+	{
+		T scanJar(URL location, List<Stamp> stamps) throws IOException;
+
+		T scanDirectory(URL location, List<Stamp> stamps) throws IOException;
+	}
+
+	/*
+	 * Scans every location of uri (as the class loader listed them), in parallel when there's an executor to do it on.  Results are returned in the order the class loader gave the
+	 * locations in, whichever finished first, and locations with a null result are left out.
+	 */
+	private <T> Map<URL, T> scanLocations(String uri, List<URL> locations, List<Stamp> stamps, LocationScanner<T> scanner) throws IOException
+	{
+		List<LocationScan<T>> scans = new ArrayList<LocationScan<T>>();
+		for(URL location: locations)
+		{
+			scans.add(new LocationScan<T>(location, scanner));
+		}
+
+		List<T> results = new ArrayList<T>();
+		if (executor == null || scans.size() < 2)
+		{
+			for(LocationScan<T> scan: scans)
+			{
+				results.add(scan.call());
+			}
+		}
+		else
+		{
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for(LocationScan<T> scan: scans)
+			{
+				futures.add(executor.submit(scan));
+			}
+			try
+			{
+				for(Future<T> future: futures)
+				{
+					results.add(future.get());
+				}
+			}
+			catch (ExecutionException e)
+			{
+				// a scan only fails with unchecked exceptions
+				if (e.getCause() instanceof Error)
+				{
+					throw (Error) e.getCause();
+				}
+				throw (RuntimeException) e.getCause();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while looking for " + uri);
+			}
+			finally
+			{
+				for(Future<T> future: futures)
+				{
+					future.cancel(true);
+				}
+			}
+		}
+
+		Map<URL, T> found = new LinkedHashMap<URL, T>();
+		for(int i = 0; i < locations.size(); i++)
+		{
+			stamps.addAll(scans.get(i).stamps);
+			if(results.get(i) != null)
+			{
+				found.put(locations.get(i), results.get(i));
+			}
+		}
+		return found;
+	}
+
+	private static class LocationScan<T> implements Callable<T>
+	{
+		private final URL location;
+		private final LocationScanner<T> scanner;
+		private final List<Stamp> stamps = new ArrayList<Stamp>();
+
+		private LocationScan(final URL location, final LocationScanner<T> scanner)
+		{
+			this.location = location;
+			this.scanner = scanner;
+		}
+
+		@Override
+		public T call()
+		{
+			try
+			{
+				if (location.getProtocol().equals("jar"))
+				{
+					addStamp(stamps, getOuterJar(location));
+					return scanner.scanJar(location, stamps);
+				}
+				else if (location.getProtocol().equals("file"))
+				{
+					addStamp(stamps, toFile(location));
+					return scanner.scanDirectory(location, stamps);
+				}
 				else
 				{
 					throw new IOException("Herman only supports jars at 'file:' and 'jar:' urls.  Not from " + location);
@@ -111,17 +305,163 @@ class ResourceFinder
 				throw new RuntimeException("Failed to read jar entries from : " + location, e);
 			}
 		}
+	}
 
-		return resources;
+	@SuppressWarnings("unchecked")
+	private <T> T getCachedDiscovery(String key, List<URL> locations)
+	{
+		ConcurrentMap<String, Discovery<?>> cache = discoveries.get(classLoader);
+		Discovery<?> discovery = cache == null ? null : cache.get(key);
+		if (discovery == null)
+		{
+			return null;
+		}
+		if (!discovery.isCurrent(locations))
+		{
+			cache.remove(key, discovery);
+			return null;
+		}
+		return (T) discovery.result;
+	}
+
+	private <T> T putCachedDiscovery(String key, T result, List<URL> locations, List<Stamp> stamps)
+	{
+		ConcurrentMap<String, Discovery<?>> cache;
+		synchronized (discoveries)
+		{
+			cache = discoveries.get(classLoader);
+			if (cache == null)
+			{
+				cache = new ConcurrentHashMap<String, Discovery<?>>();
+				discoveries.put(classLoader, cache);
+			}
+		}
+		cache.put(key, new Discovery<T>(result, locations, stamps));
+		return result;
+	}
+
+	private static void addStamp(List<Stamp> stamps, File file)
+	{
+		if (file != null)
+		{
+			stamps.add(new Stamp(file));
+		}
+	}
+
+	/*
+	 * The outer jar of a jar:file: url, or null if it's anywhere else.
+	 */
+	private static File getOuterJar(URL location) throws IOException
+	{
+		String url = location.toString();
+		int separator = url.indexOf(HermanUrlStreamHandler.JAR_SEPARATOR);
+		if (!url.startsWith("jar:file:") || separator == -1 || url.indexOf(HermanUrlStreamHandler.JAR_SEPARATOR, separator + 1) != -1)
+		{
+			return null;
+		}
+		return toFile(new URL(url.substring("jar:".length(), separator)));
+	}
+
+	private static void put(Map<String, Map<URL, List<URL>>> resources, String directory, URL location, List<URL> jarUrls)
+	{
+		Map<URL, List<URL>> locations = resources.get(directory);
+		if(locations == null)
+		{
+			locations = new LinkedHashMap<URL, List<URL>>();
+			resources.put(directory, locations);
+		}
+		locations.put(location, Collections.unmodifiableList(jarUrls));
+	}
+
+	private static File toFile(URL location)
+	{
+		try {
+			return new File(location.toURI());
+		} catch(URISyntaxException e) {
+			return new File(location.getPath());
+		}
+	}
+
+	private static List<URL> listJarFiles(URL location) throws IOException
+	{
+		final File[] jarFiles = toFile(location).listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(final File dir, final String name)
+			{
+				return name.endsWith(".jar");
+			}
+		});
+		if(jarFiles == null)
+		{
+			return null;
+		}
+		Arrays.sort(jarFiles);
+		List<URL> jarUrls = new ArrayList<URL>();
+		for(File file: jarFiles)
+		{
+			jarUrls.add(file.toURI().toURL());
+		}
+		return jarUrls;
 	}
 
     static List<URL> readJarEntries(URL location, String basePath) throws IOException {
+        List<URL> entryUrls = new ArrayList<URL>();
+        for (String name : listJarEntries(location, basePath)) {
+            if (name.contains("/")) {
+                continue;
+            }
+            entryUrls.add(toHermanUrl(location, name));
+        }
+        return entryUrls;
+    }
+
+    /*
+     * The nested jars one directory below basePath, keyed by that directory.
+     */
+    static Map<String, List<URL>> readJarDirectories(URL location, String basePath) throws IOException {
+        Map<String, List<URL>> directories = new LinkedHashMap<String, List<URL>>();
+        for (String name : listJarEntries(location, basePath)) {
+            int separator = name.indexOf('/');
+            if (separator <= 0 || name.indexOf('/', separator + 1) != -1) {
+                continue;
+            }
+            String directory = name.substring(0, separator);
+            List<URL> entryUrls = directories.get(directory);
+            if (entryUrls == null) {
+                entryUrls = new ArrayList<URL>();
+                directories.put(directory, entryUrls);
+            }
+            entryUrls.add(toHermanUrl(location, name));
+        }
+        return directories;
+    }
+
+    /*
+     * The names, relative to basePath, of the files under basePath - the nested jars listed in the jar's index when it has one, otherwise every
+     * file found by walking the jar.
+     */
+    private static List<String> listJarEntries(URL location, String basePath) throws IOException {
+        File outerJar = getOuterJar(location);
+        if (outerJar != null && outerJar.length() <= Integer.MAX_VALUE) {
+            return listJarEntries(HermanUrlStreamHandler.mapOuterJar(outerJar), outerJar.toString(), basePath);
+        }
+
+        String jarRoot = location.toString();
+        jarRoot = jarRoot.substring(0, jarRoot.lastIndexOf(HermanUrlStreamHandler.JAR_SEPARATOR) + HermanUrlStreamHandler.JAR_SEPARATOR.length());
+
+        IsolatedIndex index = IsolatedIndex.read(jarRoot);
+        if (index != null) {
+            return listIndexEntries(index, basePath);
+        }
+
+        List<String> names = new ArrayList<String>();
+
         JarURLConnection conn = (JarURLConnection) location.openConnection();
         JarFile jarfile = null;
         jarfile = conn.getJarFile();
 
         Enumeration<JarEntry> entries = jarfile.entries();
-        List<URL> entryUrls = new ArrayList<URL>();
         while (entries != null && entries.hasMoreElements()) {
             JarEntry entry = entries.nextElement();
             String name = entry.getName();
@@ -130,15 +470,113 @@ class ResourceFinder
                 continue;
             }
 
-            name = name.substring(basePath.length());
+            names.add(name.substring(basePath.length()));
+        }
+        return names;
+    }
+
+    /*
+     * Lists a jar on the file system straight from its central directory.  Names are matched against basePath as raw bytes, so the only strings
+     * created are for the entries we're after - a JarFile would build a JarEntry for each of the (possibly hundreds of thousands of) others.
+     */
+    private static List<String> listJarEntries(ZipDirectory jar, String description, String basePath) throws IOException {
+        IsolatedIndex index = IsolatedIndex.read(jar, description);
+        if (index != null) {
+            return listIndexEntries(index, basePath);
+        }
 
-            if (name.contains("/")) {
+        List<String> names = new ArrayList<String>();
+        byte[] prefix = basePath.getBytes(ZipDirectory.UTF_8);
+        for (int i = 0; i < jar.size(); i++) {
+            if (!jar.nameStartsWith(i, prefix) || jar.isDirectory(i)) {
                 continue;
             }
+            String name = jar.getName(i);
+            if (name.length() > basePath.length()) {
+                names.add(name.substring(basePath.length()));
+            }
+        }
+        return names;
+    }
 
-	        URL resource = new URL(HermanUrlStreamHandler.PROTOCOL + ":" + location.toString() + name + HermanUrlStreamHandler.HERMAN_SEPARATOR);
-            entryUrls.add(resource);
+    private static List<String> listIndexEntries(IsolatedIndex index, String basePath) {
+        List<String> names = new ArrayList<String>();
+        for (IsolatedIndex.Entry entry : index.getEntries()) {
+            String name = entry.getName();
+            if (name.startsWith(basePath) && name.length() > basePath.length()) {
+                names.add(name.substring(basePath.length()));
+            }
         }
-        return entryUrls;
+        return names;
     }
+
+    private static URL toHermanUrl(URL location, String name) throws IOException {
+        return new URL(HermanUrlStreamHandler.PROTOCOL + ":" + location.toString() + name + HermanUrlStreamHandler.HERMAN_SEPARATOR);
+    }
+
+	private static class Discovery<T>
+	{
+		private final T result;
+		private final List<String> locations;
+		private final List<Stamp> stamps;
+
+		private Discovery(final T result, final List<URL> locations, final List<Stamp> stamps)
+		{
+			this.result = result;
+			this.locations = toStrings(locations);
+			this.stamps = stamps;
+		}
+
+		/*
+		 * Current while the class loader still lists the same locations (a new jar or an addURL adds one) and none of them have changed.  Urls are
+		 * compared as strings, URL.equals may resolve host names.
+		 */
+		boolean isCurrent(List<URL> currentLocations)
+		{
+			if (!locations.equals(toStrings(currentLocations)))
+			{
+				return false;
+			}
+			for (Stamp stamp : stamps)
+			{
+				if (!stamp.isCurrent())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static List<String> toStrings(List<URL> urls)
+		{
+			List<String> strings = new ArrayList<String>(urls.size());
+			for (URL url : urls)
+			{
+				strings.add(url.toString());
+			}
+			return strings;
+		}
+	}
+
+	/*
+	 * The size and modification time of a file (or directory) a discovery was read from.
+	 */
+	private static class Stamp
+	{
+		private final File file;
+		private final long length;
+		private final long lastModified;
+
+		private Stamp(final File file)
+		{
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		boolean isCurrent()
+		{
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+	}
 }
@@ -0,0 +1,470 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/*
+ * A minimal reader for the central directory of a zip archive held in a ByteBuffer - usually a memory mapped file, or a slice of one.  Entries are
+ * addressed by index and every read is absolute, so a single instance may be shared between threads.
+ */
+class ZipDirectory
+{
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	private static final int LOCAL_HEADER_LENGTH = 30;
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+	private static final int END_LENGTH = 22;
+	private static final int ZIP64_LOCATOR_LENGTH = 20;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+	private final ByteBuffer data;
+	private final int[] headerOffsets;
+	private volatile Map<String, Integer> nameIndex;
+
+	private ZipDirectory(final ByteBuffer data, final int[] headerOffsets)
+	{
+		this.data = data;
+		this.headerOffsets = headerOffsets;
+	}
+
+	static ZipDirectory map(File file) throws IOException
+	{
+		FileInputStream input = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = input.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+			{
+				throw new ZipException("Zip archive " + file + " is too large to map.");
+			}
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	static ZipDirectory read(ByteBuffer data) throws ZipException
+	{
+		int end = findEnd(data);
+		long entryCount = getShort(data, end + 10);
+		long directorySize = getInt(data, end + 12);
+		long directoryOffset = getInt(data, end + 16);
+		if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL)
+		{
+			int locator = end - ZIP64_LOCATOR_LENGTH;
+			if (locator >= 0 && getInt(data, locator) == ZIP64_LOCATOR_SIGNATURE)
+			{
+				long zip64End = getLong(data, locator + 8);
+				if (zip64End < 0 || zip64End > locator - 56 || getInt(data, (int) zip64End) != ZIP64_END_SIGNATURE)
+				{
+					throw new ZipException("Invalid zip64 end of central directory record.");
+				}
+				entryCount = getLong(data, (int) zip64End + 32);
+				directorySize = getLong(data, (int) zip64End + 40);
+				directoryOffset = getLong(data, (int) zip64End + 48);
+			}
+		}
+		if (directoryOffset + directorySize > data.limit() || entryCount > directorySize / CENTRAL_HEADER_LENGTH)
+		{
+			throw new ZipException("Invalid central directory.");
+		}
+
+		int[] headerOffsets = new int[(int) entryCount];
+		int position = (int) directoryOffset;
+		for (int i = 0; i < headerOffsets.length; i++)
+		{
+			if (getInt(data, position) != CENTRAL_HEADER_SIGNATURE)
+			{
+				throw new ZipException("Invalid central directory header at " + position);
+			}
+			headerOffsets[i] = position;
+			position += CENTRAL_HEADER_LENGTH + getShort(data, position + 28) + getShort(data, position + 30) + getShort(data, position + 32);
+		}
+		return new ZipDirectory(data, headerOffsets);
+	}
+
+	private static int findEnd(ByteBuffer data) throws ZipException
+	{
+		int lowest = Math.max(0, data.limit() - END_LENGTH - MAX_COMMENT_LENGTH);
+		for (int position = data.limit() - END_LENGTH; position >= lowest; position--)
+		{
+			if (getInt(data, position) == END_SIGNATURE && position + END_LENGTH + getShort(data, position + 20) <= data.limit())
+			{
+				return position;
+			}
+		}
+		throw new ZipException("No end of central directory record found.");
+	}
+
+	int size()
+	{
+		return headerOffsets.length;
+	}
+
+	String getName(int entry)
+	{
+		int header = headerOffsets[entry];
+		int length = getShort(data, header + 28);
+		byte[] name = new byte[length];
+		ByteBuffer buffer = data.duplicate();
+		buffer.position(header + CENTRAL_HEADER_LENGTH);
+		buffer.get(name);
+		return new String(name, UTF_8);
+	}
+
+	boolean nameStartsWith(int entry, byte[] prefix)
+	{
+		int header = headerOffsets[entry];
+		if (getShort(data, header + 28) < prefix.length)
+		{
+			return false;
+		}
+		int name = header + CENTRAL_HEADER_LENGTH;
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (data.get(name + i) != prefix[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int getMethod(int entry)
+	{
+		return getShort(data, headerOffsets[entry] + 10);
+	}
+
+	long getCrc(int entry)
+	{
+		return getInt(data, headerOffsets[entry] + 16);
+	}
+
+	int getCompressedSize(int entry)
+	{
+		return (int) getInt(data, headerOffsets[entry] + 20);
+	}
+
+	int getSize(int entry)
+	{
+		return (int) getInt(data, headerOffsets[entry] + 24);
+	}
+
+	int getLocalHeaderOffset(int entry)
+	{
+		return (int) getInt(data, headerOffsets[entry] + 42);
+	}
+
+	int getDataOffset(int entry) throws ZipException
+	{
+		int local = getLocalHeaderOffset(entry);
+		if (local < 0 || local > data.limit() - LOCAL_HEADER_LENGTH || getInt(data, local) != LOCAL_HEADER_SIGNATURE)
+		{
+			throw new ZipException("Invalid local header for " + getName(entry));
+		}
+		return local + LOCAL_HEADER_LENGTH + getShort(data, local + 26) + getShort(data, local + 28);
+	}
+
+	/*
+	 * Returns the raw (possibly compressed) bytes of an entry, sharing content with the underlying buffer.
+	 */
+	ByteBuffer getData(int entry) throws ZipException
+	{
+		int start = getDataOffset(entry);
+		int length = getCompressedSize(entry);
+		if (length < 0 || start + length > data.limit())
+		{
+			throw new ZipException("Invalid compressed size for " + getName(entry));
+		}
+		ByteBuffer buffer = data.duplicate();
+		buffer.limit(start + length).position(start);
+		return buffer.slice();
+	}
+
+	InputStream getInputStream(int entry) throws IOException
+	{
+		InputStream raw = new ByteBufferInputStream(getData(entry));
+		switch (getMethod(entry))
+		{
+			case ZipEntry.STORED:
+				return raw;
+			case ZipEntry.DEFLATED:
+				return new LazyInflaterInputStream(raw);
+			default:
+				throw new ZipException("Unsupported compression method " + getMethod(entry) + " for " + getName(entry));
+		}
+	}
+
+	/*
+	 * Looks up an entry by name, following ZipFile in also trying the name as a directory.  Returns -1 if there is no such entry.
+	 */
+	int indexOf(String name)
+	{
+		Map<String, Integer> index = nameIndex;
+		if (index == null)
+		{
+			index = new HashMap<String, Integer>(headerOffsets.length * 2);
+			for (int i = 0; i < headerOffsets.length; i++)
+			{
+				index.put(getName(i), i);
+			}
+			nameIndex = index;
+		}
+		Integer entry = index.get(name);
+		if (entry == null && !name.endsWith("/"))
+		{
+			entry = index.get(name + "/");
+		}
+		return entry == null ? -1 : entry;
+	}
+
+	boolean nameEquals(int entry, byte[] name)
+	{
+		return getShort(data, headerOffsets[entry] + 28) == name.length && nameStartsWith(entry, name);
+	}
+
+	/*
+	 * Whether the local header of an entry with the given raw name starts at offset.
+	 */
+	boolean isLocalHeader(long offset, byte[] name)
+	{
+		if (offset < 0 || offset > data.limit() - LOCAL_HEADER_LENGTH - name.length || getInt(data, (int) offset) != LOCAL_HEADER_SIGNATURE
+				|| getShort(data, (int) offset + 26) != name.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < name.length; i++)
+		{
+			if (data.get((int) offset + LOCAL_HEADER_LENGTH + i) != name[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean isDirectory(int entry)
+	{
+		int header = headerOffsets[entry];
+		int length = getShort(data, header + 28);
+		return length > 0 && data.get(header + CENTRAL_HEADER_LENGTH + length - 1) == '/';
+	}
+
+	private static int getShort(ByteBuffer data, int position)
+	{
+		return (data.get(position) & 0xFF) | ((data.get(position + 1) & 0xFF) << 8);
+	}
+
+	private static long getInt(ByteBuffer data, int position)
+	{
+		return (getShort(data, position) | ((long) getShort(data, position + 2) << 16)) & 0xFFFFFFFFL;
+	}
+
+	private static long getLong(ByteBuffer data, int position)
+	{
+		return getInt(data, position) | (getInt(data, position + 4) << 32);
+	}
+
+	static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len)
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n)
+		{
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+	/*
+	 * Class path lookups and resource probes often open a stream and never read or close it, so the inflater - native memory, until it is ended or
+	 * finalized - is only created on the first read, and ended as soon as the entry has been read to the end.
+	 */
+	private static class LazyInflaterInputStream extends InputStream
+	{
+		private final InputStream raw;
+		private EntryInflaterInputStream input;
+		private boolean closed;
+
+		LazyInflaterInputStream(final InputStream raw)
+		{
+			this.raw = raw;
+		}
+
+		private InputStream input()
+		{
+			if (input == null)
+			{
+				input = new EntryInflaterInputStream(raw);
+			}
+			return input;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (closed)
+			{
+				return -1;
+			}
+			int b = input().read();
+			if (b == -1)
+			{
+				close();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (closed)
+			{
+				return -1;
+			}
+			int n = input().read(b, off, len);
+			if (n == -1)
+			{
+				close();
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			return closed ? 0 : input().skip(n);
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return closed || input == null ? 0 : input.available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (!closed)
+			{
+				closed = true;
+				if (input != null)
+				{
+					input.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Same trick as ZipFile uses - a raw inflater may need one byte past the end of the data to finish.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream
+	{
+		private boolean eof;
+		private boolean closed;
+
+		EntryInflaterInputStream(final InputStream in)
+		{
+			super(in, new Inflater(true), 4096);
+		}
+
+		@Override
+		protected void fill() throws IOException
+		{
+			if (eof)
+			{
+				throw new EOFException("Unexpected end of zip entry.");
+			}
+			len = in.read(buf, 0, buf.length);
+			if (len == -1)
+			{
+				buf[0] = 0;
+				len = 1;
+				eof = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (!closed)
+			{
+				closed = true;
+				super.close();
+				inf.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassLoaderRegistryTest
+{
+	private static final String[] NO_FILTERS = new String[0];
+	private static final String TEST_PACKAGE = "META-INF/isolated/test.package.Service";
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private static ClassLoaderRegistry.Key key(String location, ClassLoader parent)
+	{
+		return new ClassLoaderRegistry.Key(location, Collections.<URL>emptyList(), parent, NO_FILTERS, NO_FILTERS);
+	}
+
+	private static ClassLoaderRegistry.Factory factory(final ClassLoader parent)
+	{
+		return new ClassLoaderRegistry.Factory()
+		{
+			@Override
+			public URLClassLoader create()
+			{
+				return new URLClassLoader(new URL[0], parent);
+			}
+		};
+	}
+
+	@Test
+	public void testSameKeyGetsTheSameLoader() throws Exception
+	{
+		ClassLoaderRegistry registry = new ClassLoaderRegistry();
+		ClassLoader parent = getClass().getClassLoader();
+		URLClassLoader classLoader = registry.acquire(key("same", parent), factory(parent));
+		assertSame(classLoader, registry.acquire(key("same", parent), factory(parent)));
+		registry.release(classLoader);
+		assertEquals(1, registry.size());
+		registry.release(classLoader);
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void testUnreleasedLoadersAreForgottenOnceCollected() throws Exception
+	{
+		ClassLoaderRegistry registry = new ClassLoaderRegistry();
+		ClassLoader parent = new URLClassLoader(new URL[0], getClass().getClassLoader());
+		WeakReference<ClassLoader> parentReference = new WeakReference<ClassLoader>(parent);
+		WeakReference<URLClassLoader> reference = new WeakReference<URLClassLoader>(registry.acquire(key("dropped", parent), factory(parent)));
+		assertEquals(1, registry.size());
+
+		parent = null;
+		for (int i = 0; i < 20 && (reference.get() != null || parentReference.get() != null); i++)
+		{
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertNull("The registry kept the loader alive", reference.get());
+		assertNull("The registry kept the loader's parent alive", parentReference.get());
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void testLoadersAreCreatedOutsideTheLock() throws Exception
+	{
+		final ClassLoaderRegistry registry = new ClassLoaderRegistry();
+		final ClassLoader parent = getClass().getClassLoader();
+		final CountDownLatch creating = new CountDownLatch(1);
+		final CountDownLatch otherCreated = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<URLClassLoader> slow = executor.submit(new Callable<URLClassLoader>()
+			{
+				@Override
+				public URLClassLoader call() throws Exception
+				{
+					return registry.acquire(key("slow", parent), new ClassLoaderRegistry.Factory()
+					{
+						@Override
+						public URLClassLoader create()
+						{
+							creating.countDown();
+							try
+							{
+								// only finishes once a loader for another key could be created in the meantime
+								assertTrue(otherCreated.await(10, TimeUnit.SECONDS));
+							}
+							catch (InterruptedException e)
+							{
+								throw new AssertionError(e);
+							}
+							return new URLClassLoader(new URL[0], parent);
+						}
+					});
+				}
+			});
+			assertTrue(creating.await(10, TimeUnit.SECONDS));
+			URLClassLoader fast = registry.acquire(key("fast", parent), factory(parent));
+			otherCreated.countDown();
+			URLClassLoader slowLoader = slow.get(10, TimeUnit.SECONDS);
+			assertEquals(2, registry.size());
+			registry.release(fast);
+			registry.release(slowLoader);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testJarsOfACollectedLoaderAreReleasedWhenItIsReplaced() throws Exception
+	{
+		final URL jarUrl = deflatedNestedJar();
+		final ClassLoader parent = getClass().getClassLoader();
+		ClassLoaderRegistry.Factory factory = new ClassLoaderRegistry.Factory()
+		{
+			@Override
+			public URLClassLoader create()
+			{
+				HermanUrlStreamHandler.retain(jarUrl);
+				try
+				{
+					HermanUrlStreamHandler.prepare(jarUrl);
+				}
+				catch (IOException e)
+				{
+					throw new AssertionError(e);
+				}
+				return new URLClassLoader(new URL[] { jarUrl }, parent);
+			}
+		};
+		ClassLoaderRegistry registry = new ClassLoaderRegistry();
+		Set<File> before = ExtractionStoreTest.extractedJars();
+		WeakReference<URLClassLoader> reference = new WeakReference<URLClassLoader>(registry.acquire(key("replaced", parent), factory));
+		Set<File> extracted = ExtractionStoreTest.extractedJars();
+		extracted.removeAll(before);
+		assertEquals(1, extracted.size());
+
+		// dropped without being released, and acquired again as soon as it has been collected - most likely before its reference is queued
+		for (int i = 0; i < 100 && reference.get() != null; i++)
+		{
+			System.gc();
+		}
+		assertNull(reference.get());
+		registry.release(registry.acquire(key("replaced", parent), factory));
+		assertFalse("The collected loader's retain was never released", extracted.iterator().next().exists());
+	}
+
+	private URL deflatedNestedJar() throws IOException
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		File innerJar = new File(parentDir, "inner.jar");
+		String dummyClass = DummyClass1.class.getName().replace(".", "/") + ".class";
+		JarCreater.createJar(innerJar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(DummyClass1.class.getPackage().getName().replace(".", "/"),
+				"DummyClass1.class", getClass().getClassLoader().getResource(dummyClass))));
+		File outerJar = new File(parentDir, "outer.jar");
+		JarCreater.createJar(outerJar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, "inner.jar", innerJar.toURI().toURL())));
+		Map<URL, List<URL>> nestedJars = new ResourceFinder(new URLClassLoader(new URL[] { outerJar.toURI().toURL() })).getNestedJars(TEST_PACKAGE);
+		return nestedJars.values().iterator().next().get(0);
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractionStoreTest
+{
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private final List<String> evicted = new ArrayList<String>();
+
+	private ExtractionStore createStore(long quota)
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		return new ExtractionStore(parentDir, quota, new ExtractionStore.Listener()
+		{
+			@Override
+			public void evicted(final String key, final File file)
+			{
+				evicted.add(key);
+			}
+		});
+	}
+
+	private static File add(ExtractionStore store, String key) throws IOException
+	{
+		File file = store.createFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(new byte[100]);
+		}
+		finally
+		{
+			out.close();
+		}
+		store.added(key, file);
+		return file;
+	}
+
+	@Test
+	public void testReleasedJarsAreEvictedOverQuota() throws IOException
+	{
+		ExtractionStore store = createStore(250);
+		store.retain("a");
+		File a = add(store, "a");
+		store.retain("b");
+		File b = add(store, "b");
+		store.retain("c");
+		File c = add(store, "c");
+		assertTrue("Jars in use should never be evicted.", evicted.isEmpty());
+
+		store.release("b");
+		store.release("a");
+		assertEquals(1, evicted.size());
+		assertEquals("b", evicted.get(0));
+		assertFalse(b.exists());
+		assertTrue(a.exists());
+		assertTrue(c.exists());
+		assertEquals(200, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testDeleteOnlyReleasedJars() throws IOException
+	{
+		ExtractionStore store = createStore(Long.MAX_VALUE);
+		store.retain("a");
+		File a = add(store, "a");
+		store.delete("a");
+		assertTrue(a.exists());
+
+		store.release("a");
+		store.delete("a");
+		assertFalse(a.exists());
+		assertEquals(0, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testOrphanedDirectoriesAreSwept() throws IOException
+	{
+		File orphan = new File(tmpdir.getDir(), ExtractionStore.DIRECTORY_PREFIX + "orphan");
+		orphan.mkdirs();
+		File orphanLock = new File(orphan, ".lock");
+		orphanLock.createNewFile();
+		new File(orphan, "stale.jar").createNewFile();
+		File young = new File(tmpdir.getDir(), ExtractionStore.DIRECTORY_PREFIX + "young");
+		young.mkdirs();
+		new File(young, ".lock").createNewFile();
+
+		// only directories that have been around a while are candidates - a new one may not have been locked yet
+		orphanLock.setLastModified(System.currentTimeMillis() - 2 * ExtractionStore.MIN_SWEEP_AGE);
+		ExtractionStore store = createStore(Long.MAX_VALUE);
+		assertFalse("Directory of a dead process should have been swept.", orphan.exists());
+		assertTrue("Directory that may still be starting up should be left alone.", young.exists());
+		assertTrue(store.getDirectory().isDirectory());
+
+		ExtractionStore other = createStore(Long.MAX_VALUE);
+		assertTrue("Directory of a live store should be left alone.", store.getDirectory().isDirectory());
+		other.close();
+		store.close();
+		assertFalse(store.getDirectory().exists());
+	}
+
+	/*
+	 * Every jar extracted to the extraction directories in the temp directory, for tests to see what the stream handler extracts.
+	 */
+	static Set<File> extractedJars()
+	{
+		Set<File> jars = new HashSet<File>();
+		File[] directories = new File(System.getProperty("java.io.tmpdir")).listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(final File file)
+			{
+				return file.isDirectory() && file.getName().startsWith(ExtractionStore.DIRECTORY_PREFIX);
+			}
+		});
+		for (File directory : directories == null ? new File[0] : directories)
+		{
+			File[] files = directory.listFiles();
+			if (files != null)
+			{
+				for (File file : files)
+				{
+					if (file.getName().endsWith(".jar"))
+					{
+						jars.add(file);
+					}
+				}
+			}
+		}
+		return jars;
+	}
+}
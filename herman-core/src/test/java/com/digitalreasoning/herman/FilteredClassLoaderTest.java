@@ -73,4 +73,13 @@ public class FilteredClassLoaderTest
 		assertTrue(dummyClass1.getClassLoader() == parentClassLoader);
 		assertTrue(dummyClass2.getClassLoader() == ucl);
 	}
+
+	@Test
+	public void testExtensionClassesAreNeverFiltered() throws ClassNotFoundException
+	{
+		ClassLoader parentClassLoader = Thread.currentThread().getContextClassLoader();
+		FilteredClassLoader filteredLoader = new FilteredClassLoader(parentClassLoader, new String[] { DummyClass1.class.getName() }, new String[] { "java." });
+		assertTrue(filteredLoader.loadClass(String.class.getName()) == String.class);
+		assertTrue(filteredLoader.loadClass(DummyClass1.class.getName()) == DummyClass1.class);
+	}
 }
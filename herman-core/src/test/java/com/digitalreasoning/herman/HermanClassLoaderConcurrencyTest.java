@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HermanClassLoaderConcurrencyTest
+{
+	private static final String BLOCKING_CLASS = "com.example.Blocker";
+	private static final List<Class<?>> CLASSES = Arrays.<Class<?>> asList(DummyClass1.class, DummyClass2.class, DummyService.class, DummyProvider.class);
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private URL[] jarUrls;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		List<JarCreater.Entry> entries = new ArrayList<JarCreater.Entry>();
+		for (Class<?> clazz : CLASSES)
+		{
+			String resource = clazz.getName().replace(".", "/") + ".class";
+			entries.add(new JarCreater.Entry(clazz.getPackage().getName().replace(".", "/"), clazz.getSimpleName() + ".class",
+					getClass().getClassLoader().getResource(resource)));
+		}
+		File jar = new File(parentDir, "classes.jar");
+		JarCreater.createJar(jar, entries);
+		jarUrls = new URL[] { jar.toURI().toURL() };
+		executor = Executors.newFixedThreadPool(8);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testLoadingOneClassDoesntBlockAnother() throws Exception
+	{
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ClassLoader parent = new ClassLoader(getClass().getClassLoader())
+		{
+			@Override
+			protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+			{
+				if (name.equals(BLOCKING_CLASS))
+				{
+					blocked.countDown();
+					try
+					{
+						release.await();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					throw new ClassNotFoundException(name);
+				}
+				return super.loadClass(name, resolve);
+			}
+		};
+		final HermanClassLoader loader = new HermanClassLoader(jarUrls, parent, jarUrls[0], new String[0], new String[0]);
+		try
+		{
+			executor.submit(new Callable<Class<?>>()
+			{
+				@Override
+				public Class<?> call() throws Exception
+				{
+					return loader.loadClass(BLOCKING_CLASS);
+				}
+			});
+			blocked.await();
+			// the herman and filtered loaders are both in the middle of loading the blocking class, but only that one class should be locked.
+			Future<Class<?>> other = executor.submit(new Callable<Class<?>>()
+			{
+				@Override
+				public Class<?> call() throws Exception
+				{
+					return loader.loadClass(DummyClass1.class.getName());
+				}
+			});
+			assertSame(DummyClass1.class, other.get(10, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testConcurrentLoadsOfDistinctClasses() throws Exception
+	{
+		// nothing is included from the parent, so every class is defined by the herman loader itself.
+		final HermanClassLoader loader = new HermanClassLoader(jarUrls, getClass().getClassLoader(), jarUrls[0], new String[] { "java." }, new String[0]);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<List<Class<?>>>> results = new ArrayList<Future<List<Class<?>>>>();
+		for (int i = 0; i < 8; i++)
+		{
+			final List<Class<?>> order = new ArrayList<Class<?>>(CLASSES);
+			Collections.rotate(order, i);
+			results.add(executor.submit(new Callable<List<Class<?>>>()
+			{
+				@Override
+				public List<Class<?>> call() throws Exception
+				{
+					start.await();
+					List<Class<?>> loaded = new ArrayList<Class<?>>();
+					for (Class<?> clazz : order)
+					{
+						loaded.add(loader.loadClass(clazz.getName()));
+					}
+					return loaded;
+				}
+			}));
+		}
+		start.countDown();
+
+		List<Class<?>> expected = new ArrayList<Class<?>>();
+		for (Class<?> clazz : CLASSES)
+		{
+			Class<?> isolated = loader.loadClass(clazz.getName());
+			assertSame(loader, isolated.getClassLoader());
+			expected.add(isolated);
+		}
+		for (int i = 0; i < results.size(); i++)
+		{
+			List<Class<?>> loaded = results.get(i).get(10, TimeUnit.SECONDS);
+			Collections.rotate(loaded, -i);
+			assertEquals(expected, loaded);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HermanUrlStreamHandlerTest
+{
+	private static final String TEST_PACKAGE = "META-INF/isolated/test.package.Service";
+	private static final String DUMMY_CLASS_1 = DummyClass1.class.getName().replace(".", "/") + ".class";
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private File innerJar;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		innerJar = new File(parentDir, "inner.jar");
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		JarCreater.createJar(innerJar, Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(DummyClass1.class.getPackage().getName().replace(".", "/"), "DummyClass1.class", classLoader.getResource(DUMMY_CLASS_1))));
+	}
+
+	private URL nestedJarUrl(boolean stored) throws IOException
+	{
+		File outerJar = new File(tmpdir.getDir(), stored ? "stored.jar" : "deflated.jar");
+		JarCreater.createJar(outerJar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, "inner.jar", innerJar.toURI().toURL())), stored);
+		Map<URL, List<URL>> nestedJars = new ResourceFinder(new URLClassLoader(new URL[] { outerJar.toURI().toURL() })).getNestedJars(TEST_PACKAGE);
+		assertTrue("Expected nested jars in " + TEST_PACKAGE, !nestedJars.isEmpty());
+		return nestedJars.values().iterator().next().get(0);
+	}
+
+	@Test
+	public void testStoredJarIsReadInPlace() throws IOException
+	{
+		URLConnection connection = new URL(nestedJarUrl(true), DUMMY_CLASS_1).openConnection();
+		assertTrue(connection instanceof HermanUrlConnection.Mapped);
+		InputStream input = connection.getInputStream();
+		try
+		{
+			assertArrayEquals(IOUtils.toByteArray(getClass().getClassLoader().getResource(DUMMY_CLASS_1)), IOUtils.toByteArray(input));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	@Test
+	public void testDeflatedJarIsExtracted() throws IOException
+	{
+		URLConnection connection = new URL(nestedJarUrl(false), DUMMY_CLASS_1).openConnection();
+		assertTrue(connection instanceof HermanUrlConnection.Pooled);
+		InputStream input = connection.getInputStream();
+		try
+		{
+			assertArrayEquals(IOUtils.toByteArray(getClass().getClassLoader().getResource(DUMMY_CLASS_1)), IOUtils.toByteArray(input));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	@Test
+	public void testMissingEntryInStoredJar() throws IOException
+	{
+		try
+		{
+			new URL(nestedJarUrl(true), "does/not/Exist.class").openStream();
+			fail("Expected a missing entry to fail.");
+		}
+		catch (FileNotFoundException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testLoadClassFromStoredJar() throws Exception
+	{
+		URL jarUrl = nestedJarUrl(true);
+		HermanClassLoader classLoader = new HermanClassLoader(new URL[] { jarUrl }, getClass().getClassLoader().getParent(), jarUrl, new String[0], new String[0]);
+		Class<?> clazz = classLoader.loadClass(DummyClass1.class.getName());
+		assertTrue(clazz.getClassLoader() == classLoader);
+	}
+
+	@Test
+	public void testDeflatedJarIsReusedFromCacheDir() throws IOException
+	{
+		File cacheDir = new File(tmpdir.getDir(), "cache");
+		System.setProperty(HermanUrlStreamHandler.CACHE_DIR_PROPERTY, cacheDir.getPath());
+		try
+		{
+			URL resourceUrl = new URL(nestedJarUrl(false), DUMMY_CLASS_1);
+			URLConnection connection = new HermanUrlStreamHandler().openConnection(resourceUrl);
+			assertTrue(connection instanceof HermanUrlConnection.Mapped);
+			IOUtils.toByteArray(connection.getInputStream());
+			File[] cached = cacheDir.listFiles(new FilenameFilter()
+			{
+				@Override
+				public boolean accept(final File dir, final String name)
+				{
+					return name.endsWith(".jar");
+				}
+			});
+			assertEquals(1, cached.length);
+			assertTrue(cached[0].getName().startsWith("inner-"));
+
+			// a new handler stands in for a restarted process - it should pick up the same file without rewriting it
+			assertTrue(cached[0].setLastModified(1000L));
+			IOUtils.toByteArray(new HermanUrlStreamHandler().openConnection(resourceUrl).getInputStream());
+			assertEquals(1000L, cached[0].lastModified());
+		}
+		finally
+		{
+			System.clearProperty(HermanUrlStreamHandler.CACHE_DIR_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testConcurrentOpensExtractOnce() throws Exception
+	{
+		final URL resourceUrl = new URL(nestedJarUrl(false), DUMMY_CLASS_1);
+		final HermanUrlStreamHandler handler = new HermanUrlStreamHandler();
+		final byte[] expected = IOUtils.toByteArray(getClass().getClassLoader().getResource(DUMMY_CLASS_1));
+		final CountDownLatch start = new CountDownLatch(1);
+		Set<File> before = ExtractionStoreTest.extractedJars();
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try
+		{
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 16; i++)
+			{
+				results.add(executor.submit(new Callable<byte[]>()
+				{
+					@Override
+					public byte[] call() throws Exception
+					{
+						start.await();
+						InputStream input = handler.openConnection(resourceUrl).getInputStream();
+						try
+						{
+							return IOUtils.toByteArray(input);
+						}
+						finally
+						{
+							input.close();
+						}
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<byte[]> result : results)
+			{
+				assertArrayEquals(expected, result.get());
+			}
+			Set<File> extractedJars = ExtractionStoreTest.extractedJars();
+			extractedJars.removeAll(before);
+			assertEquals(1, extractedJars.size());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDiscardDeletesTheJarOnceNothingRetainsIt() throws IOException
+	{
+		URL url = nestedJarUrl(false);
+		HermanUrlStreamHandler.retain(url);
+		HermanUrlStreamHandler.retain(url);
+		Set<File> before = ExtractionStoreTest.extractedJars();
+		HermanUrlStreamHandler.prepare(url);
+		Set<File> extracted = ExtractionStoreTest.extractedJars();
+		extracted.removeAll(before);
+		assertEquals(1, extracted.size());
+		File extractedJar = extracted.iterator().next();
+
+		HermanUrlStreamHandler.discard(url);
+		assertTrue(extractedJar.exists());
+		HermanUrlStreamHandler.discard(url);
+		assertFalse(extractedJar.exists());
+
+		// nothing stale is left behind - the jar is simply extracted again
+		InputStream input = new URL(url, DUMMY_CLASS_1).openStream();
+		try
+		{
+			assertArrayEquals(IOUtils.toByteArray(getClass().getClassLoader().getResource(DUMMY_CLASS_1)), IOUtils.toByteArray(input));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	@Test
+	public void testUrlIsParsedOnce() throws IOException
+	{
+		URL jarUrl = nestedJarUrl(true);
+		HermanUrl parsed = HermanUrl.parse(new URL(jarUrl, "some%20dir/resource.txt"));
+		assertTrue(parsed == HermanUrl.parse(new URL(jarUrl, "some%20dir/resource.txt")));
+		assertEquals("some dir/resource.txt", parsed.getResource());
+		assertEquals(TEST_PACKAGE + "/inner.jar", parsed.getJar().getEntryName());
+		assertEquals(new File(tmpdir.getDir(), "stored.jar").getAbsoluteFile(), parsed.getJar().getOuterFile());
+		assertTrue(parsed.getJar() == HermanUrl.parse(new URL(jarUrl, DUMMY_CLASS_1)).getJar());
+	}
+}
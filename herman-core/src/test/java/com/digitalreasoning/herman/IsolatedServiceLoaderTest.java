@@ -0,0 +1,448 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IsolatedServiceLoaderTest
+{
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private ClassLoader classLoader;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		classLoader = new URLClassLoader(new URL[] { createPlugin(parentDir, "plugin1"), createPlugin(parentDir, "plugin2") }, getClass().getClassLoader());
+	}
+
+	private static URL createPlugin(File parentDir, String name) throws IOException
+	{
+		return createPlugin(parentDir, name, null);
+	}
+
+	private static URL createPlugin(File parentDir, String name, File library) throws IOException
+	{
+		ClassLoader classLoader = IsolatedServiceLoaderTest.class.getClassLoader();
+		String implementation = DummyProvider.class.getName().replace(".", "/") + ".class";
+		File servicesFile = new File(parentDir, name + "-services");
+		FileUtils.writeStringToFile(servicesFile, "# implementations\n" + DummyProvider.class.getName() + "\n");
+		File innerJar = new File(parentDir, name + "-inner.jar");
+		JarCreater.createJar(innerJar, Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(DummyProvider.class.getPackage().getName().replace(".", "/"), "DummyProvider.class", classLoader.getResource(implementation)),
+				new JarCreater.Entry("META-INF/services", DummyService.class.getName(), servicesFile.toURI().toURL())));
+		File outerJar = new File(parentDir, name + ".jar");
+		String isolatedRoot = IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX + DummyService.class.getName();
+		List<JarCreater.Entry> entries = new ArrayList<JarCreater.Entry>();
+		entries.add(new JarCreater.Entry(isolatedRoot, name + ".jar", innerJar.toURI().toURL()));
+		if (library != null)
+		{
+			entries.add(new JarCreater.Entry(isolatedRoot, library.getName(), library.toURI().toURL()));
+		}
+		JarCreater.createJar(outerJar, entries);
+		return outerJar.toURI().toURL();
+	}
+
+	private IsolatedServiceLoader.Builder<DummyService> builder()
+	{
+		return IsolatedServiceLoader.builder(DummyService.class).classLoader(classLoader).includes(DummyService.class.getName());
+	}
+
+	private static <T> List<T> toList(Iterable<T> iterable)
+	{
+		List<T> list = new ArrayList<T>();
+		for (T t : iterable)
+		{
+			list.add(t);
+		}
+		return list;
+	}
+
+	private static void assertIsolated(List<DummyService> services)
+	{
+		assertEquals(2, services.size());
+		for (DummyService service : services)
+		{
+			assertEquals("dummy", service.getName());
+			assertTrue(service.getClass().getClassLoader() instanceof HermanClassLoader);
+		}
+		assertTrue(services.get(0).getClass() != services.get(1).getClass());
+	}
+
+	@Test
+	public void testLoadsFromEachIsolatedRoot() throws IOException
+	{
+		IsolatedServiceLoader<DummyService> loader = builder().build();
+		assertIsolated(toList(loader));
+		loader.close();
+	}
+
+	@Test
+	public void testPreExtract() throws IOException
+	{
+		Set<File> before = ExtractionStoreTest.extractedJars();
+		IsolatedServiceLoader<DummyService> loader = builder().preExtract().build();
+		// both (deflated) nested jars are extracted before anything has been loaded from them
+		Set<File> extracted = ExtractionStoreTest.extractedJars();
+		extracted.removeAll(before);
+		assertEquals(2, extracted.size());
+		assertIsolated(toList(loader));
+		// and loading uses those copies rather than extracting again
+		Set<File> afterLoading = ExtractionStoreTest.extractedJars();
+		afterLoading.removeAll(before);
+		assertEquals(extracted, afterLoading);
+		loader.close();
+	}
+
+	@Test
+	public void testBuildFromCatalog() throws IOException
+	{
+		IsolatedServiceCatalog catalog = IsolatedServiceCatalog.scan(classLoader);
+		assertEquals(Collections.singleton(DummyService.class.getName()), catalog.getServiceNames());
+		assertEquals(2, catalog.getNestedJars(DummyService.class.getName()).size());
+		assertTrue(catalog.getNestedJars("com.example.Missing").isEmpty());
+		IsolatedServiceLoader<DummyService> loader = catalog.builder(DummyService.class).includes(DummyService.class.getName()).build();
+		assertIsolated(toList(loader));
+		// roots keep the class path order
+		List<IsolatedServiceLoader.Provider<DummyService>> providers = loader.providers();
+		assertTrue(providers.get(0).getIsolatedRoot().toString().contains("plugin1.jar"));
+		assertTrue(providers.get(1).getIsolatedRoot().toString().contains("plugin2.jar"));
+		loader.close();
+	}
+
+	@Test
+	public void testIdenticalJarsAreShared() throws IOException
+	{
+		File parentDir = new File(tmpdir.getDir(), "shared");
+		String dummyClass = DummyClass1.class.getName().replace(".", "/") + ".class";
+		File library = new File(parentDir, "library-1.0.jar");
+		JarCreater.createJar(library, Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(DummyClass1.class.getPackage().getName().replace(".", "/"), "DummyClass1.class", getClass().getClassLoader().getResource(dummyClass))));
+		classLoader = new URLClassLoader(new URL[] { createPlugin(parentDir, "plugin1", library), createPlugin(parentDir, "plugin2", library) },
+				getClass().getClassLoader());
+
+		IsolatedServiceLoader<DummyService> separateLoader = builder().build();
+		List<DummyService> separate = toList(separateLoader);
+		assertIsolated(separate);
+		assertTrue(loadFrom(separate.get(0), DummyClass1.class) != loadFrom(separate.get(1), DummyClass1.class));
+
+		IsolatedServiceLoader<DummyService> sharedLoader = builder().shareJars("library-*.jar").build();
+		List<DummyService> shared = toList(sharedLoader);
+		assertIsolated(shared);
+		Class<?> sharedClass = loadFrom(shared.get(0), DummyClass1.class);
+		assertTrue(sharedClass == loadFrom(shared.get(1), DummyClass1.class));
+		assertTrue(sharedClass.getClassLoader() instanceof HermanClassLoader);
+		assertTrue(sharedClass.getClassLoader() != shared.get(0).getClass().getClassLoader());
+
+		// jars that don't match a rule stay isolated even though they're identical.
+		IsolatedServiceLoader<DummyService> unmatchedLoader = builder().shareJars("other-*.jar").build();
+		List<DummyService> unmatched = toList(unmatchedLoader);
+		assertTrue(loadFrom(unmatched.get(0), DummyClass1.class) != loadFrom(unmatched.get(1), DummyClass1.class));
+		separateLoader.close();
+		sharedLoader.close();
+		unmatchedLoader.close();
+	}
+
+	private static Class<?> loadFrom(DummyService service, Class<?> clazz)
+	{
+		try
+		{
+			return service.getClass().getClassLoader().loadClass(clazz.getName());
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void testClose() throws IOException
+	{
+		IsolatedServiceLoader<DummyService> loader = builder().build();
+		List<DummyService> services = toList(loader);
+		assertIsolated(services);
+		loader.close();
+		loader.close();
+		List<String> unreleased = IsolatedServiceLoader.getUnreleasedClassLoaders();
+		assertEquals("Each loader should be described differently", new HashSet<String>(unreleased).size(), unreleased.size());
+		for (DummyService service : services)
+		{
+			// the services themselves keep their loaders from being collected.
+			assertTrue(isUnreleased(unreleased, service.getClass().getClassLoader()));
+		}
+		try
+		{
+			loader.iterator();
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+	}
+
+	private static boolean isUnreleased(List<String> unreleased, ClassLoader classLoader)
+	{
+		for (String description : unreleased)
+		{
+			if (description.startsWith(classLoader.toString() + " (#"))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testClassLoadersAreSharedBetweenServiceLoaders() throws IOException
+	{
+		IsolatedServiceLoader<DummyService> first = builder().build();
+		IsolatedServiceLoader<DummyService> second = builder().build();
+		List<DummyService> firstServices = toList(first);
+		List<DummyService> secondServices = toList(second);
+		for (int i = 0; i < 2; i++)
+		{
+			assertTrue(firstServices.get(i).getClass() == secondServices.get(i).getClass());
+		}
+		// different filters make different loaders
+		IsolatedServiceLoader<DummyService> filteredLoader = builder().excludes("com.example.").build();
+		List<DummyService> filtered = toList(filteredLoader);
+		assertTrue(filtered.get(0).getClass() != firstServices.get(0).getClass());
+		filteredLoader.close();
+
+		int registered = ClassLoaderRegistry.INSTANCE.size();
+		first.close();
+		assertEquals(registered, ClassLoaderRegistry.INSTANCE.size());
+		assertIsolated(toList(second));
+		second.close();
+		assertEquals(registered - 2, ClassLoaderRegistry.INSTANCE.size());
+	}
+
+	@Test
+	public void testConcurrentIteration() throws Exception
+	{
+		final IsolatedServiceLoader<DummyService> loader = builder().build();
+		int registered = ClassLoaderRegistry.INSTANCE.size();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try
+		{
+			List<Future<Set<ClassLoader>>> results = new ArrayList<Future<Set<ClassLoader>>>();
+			for (int i = 0; i < 16; i++)
+			{
+				results.add(executor.submit(new Callable<Set<ClassLoader>>()
+				{
+					@Override
+					public Set<ClassLoader> call() throws Exception
+					{
+						start.await();
+						Set<ClassLoader> classLoaders = new HashSet<ClassLoader>();
+						for (int j = 0; j < 50; j++)
+						{
+							List<DummyService> services = toList(loader);
+							assertIsolated(services);
+							for (DummyService service : services)
+							{
+								classLoaders.add(service.getClass().getClassLoader());
+							}
+						}
+						return classLoaders;
+					}
+				}));
+			}
+			start.countDown();
+			Set<ClassLoader> classLoaders = new HashSet<ClassLoader>();
+			for (Future<Set<ClassLoader>> result : results)
+			{
+				classLoaders.addAll(result.get(30, TimeUnit.SECONDS));
+			}
+			// one loader per root, however many threads raced to create it
+			assertEquals(2, classLoaders.size());
+			assertEquals(registered + 2, ClassLoaderRegistry.INSTANCE.size());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		loader.close();
+		assertEquals(registered, ClassLoaderRegistry.INSTANCE.size());
+	}
+
+	@Test
+	public void testLoadAllAsync() throws Exception
+	{
+		IsolatedServiceLoader<DummyService> loader = builder().loadFromLocal().build();
+		List<DummyService> expected = toList(loader);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try
+		{
+			List<Future<List<DummyService>>> results = loader.loadAllAsync(executor);
+			// two isolated roots and the local class loader, in iteration order
+			assertEquals(3, results.size());
+			List<DummyService> services = new ArrayList<DummyService>();
+			for (Future<List<DummyService>> result : results)
+			{
+				services.addAll(result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(expected.size(), services.size());
+			for (int i = 0; i < services.size(); i++)
+			{
+				assertTrue(expected.get(i).getClass() == services.get(i).getClass());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		loader.close();
+	}
+
+	@Test
+	public void testProvidersAreListedWithoutLoadingThem() throws IOException
+	{
+		IsolatedServiceLoader<DummyService> loader = builder().build();
+		int registered = ClassLoaderRegistry.INSTANCE.size();
+		List<IsolatedServiceLoader.Provider<DummyService>> providers = loader.providers();
+		assertEquals(2, providers.size());
+		assertTrue(!providers.get(0).getIsolatedRoot().equals(providers.get(1).getIsolatedRoot()));
+		for (IsolatedServiceLoader.Provider<DummyService> provider : providers)
+		{
+			assertEquals(DummyProvider.class.getName(), provider.getClassName());
+			assertTrue(provider.getJar().toString().startsWith(HermanUrlStreamHandler.PROTOCOL + ":"));
+		}
+		assertEquals(registered, ClassLoaderRegistry.INSTANCE.size());
+
+		DummyService service = providers.get(1).get();
+		assertEquals("dummy", service.getName());
+		assertTrue(service.getClass().getClassLoader() instanceof HermanClassLoader);
+		// only the chosen provider's class loader was created
+		assertEquals(registered + 1, ClassLoaderRegistry.INSTANCE.size());
+		assertTrue(service.getClass() == providers.get(1).get().getClass());
+		loader.close();
+	}
+
+	@Test
+	public void testCachedInstances() throws IOException
+	{
+		IsolatedServiceLoader<DummyService> uncached = builder().build();
+		assertTrue(toList(uncached).get(0) != toList(uncached).get(0));
+		uncached.close();
+
+		IsolatedServiceLoader<DummyService> loader = builder().cacheInstances().build();
+		List<DummyService> first = toList(loader);
+		assertIsolated(first);
+		List<DummyService> second = toList(loader);
+		for (int i = 0; i < 2; i++)
+		{
+			assertTrue(first.get(i) == second.get(i));
+		}
+
+		loader.reload();
+		List<DummyService> reloaded = toList(loader);
+		for (int i = 0; i < 2; i++)
+		{
+			// new instances, but the same class loaders
+			assertTrue(first.get(i) != reloaded.get(i));
+			assertTrue(first.get(i).getClass() == reloaded.get(i).getClass());
+		}
+		loader.close();
+	}
+
+	@Test
+	public void testProviderUsingTheCachingLoaderFailsRatherThanDeadlocks() throws Exception
+	{
+		File services = new File(tmpdir.getDir(), "local/META-INF/services/" + DummyService.class.getName());
+		FileUtils.writeStringToFile(services, ReentrantProvider.class.getName() + "\n");
+		classLoader = new URLClassLoader(new URL[] { new File(tmpdir.getDir(), "local").toURI().toURL() }, classLoader);
+		final IsolatedServiceLoader<DummyService> loader = builder().loadFromLocal().cacheInstances().build();
+		ReentrantProvider.loader = loader;
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<List<DummyService>> result = executor.submit(new Callable<List<DummyService>>()
+			{
+				@Override
+				public List<DummyService> call()
+				{
+					return toList(loader);
+				}
+			});
+			result.get(10, TimeUnit.SECONDS);
+			fail("Expected the provider to fail");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			while (cause != null && !(cause instanceof IllegalStateException))
+			{
+				cause = cause.getCause();
+			}
+			assertTrue("Expected an IllegalStateException, not " + e.getCause(), cause != null);
+		}
+		finally
+		{
+			ReentrantProvider.loader = null;
+			executor.shutdownNow();
+			loader.close();
+		}
+	}
+
+	public static class ReentrantProvider implements DummyService
+	{
+		static volatile IsolatedServiceLoader<DummyService> loader;
+
+		public ReentrantProvider()
+		{
+			toList(loader);
+		}
+
+		@Override
+		public String getName()
+		{
+			return "reentrant";
+		}
+	}
+}
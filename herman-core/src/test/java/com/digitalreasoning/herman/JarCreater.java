@@ -24,6 +24,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 
 import org.apache.commons.io.IOUtils;
@@ -51,6 +52,11 @@ public class JarCreater
 	}
 
 	public static void createJar(File outputJarFile, List<Entry> entries) throws IOException
+	{
+		createJar(outputJarFile, entries, false);
+	}
+
+	public static void createJar(File outputJarFile, List<Entry> entries, boolean stored) throws IOException
 	{
 		if (!outputJarFile.getParentFile().exists())
 		{
@@ -72,15 +78,35 @@ public class JarCreater
 
 				try
 				{
-					if (!packageSet.contains(folderFile.parentFolderName))
+					// like the jar tool, write an entry for every parent directory so that they can be found as resources
+					for (int slash = folderFile.parentFolderName.indexOf('/'); slash != -1; slash = folderFile.parentFolderName.indexOf('/', slash + 1))
 					{
-						jarOut.putNextEntry(new ZipEntry(folderFile.parentFolderName));
-						jarOut.closeEntry();
-						packageSet.add(folderFile.parentFolderName);
+						String folder = folderFile.parentFolderName.substring(0, slash + 1);
+						if (!packageSet.contains(folder))
+						{
+							jarOut.putNextEntry(new ZipEntry(folder));
+							jarOut.closeEntry();
+							packageSet.add(folder);
+						}
 					}
 
-					jarOut.putNextEntry(new ZipEntry(folderFile.parentFolderName + (folderFile.parentFolderName.endsWith("/") ? "" : "/") + folderFile.fileName));
-					IOUtils.copy(inputStream, jarOut);
+					ZipEntry zipEntry = new ZipEntry(folderFile.parentFolderName + (folderFile.parentFolderName.endsWith("/") ? "" : "/") + folderFile.fileName);
+					if (stored)
+					{
+						byte[] content = IOUtils.toByteArray(inputStream);
+						CRC32 crc = new CRC32();
+						crc.update(content);
+						zipEntry.setMethod(ZipEntry.STORED);
+						zipEntry.setSize(content.length);
+						zipEntry.setCrc(crc.getValue());
+						jarOut.putNextEntry(zipEntry);
+						jarOut.write(content);
+					}
+					else
+					{
+						jarOut.putNextEntry(zipEntry);
+						IOUtils.copy(inputStream, jarOut);
+					}
 					jarOut.closeEntry();
 				}
 				finally
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JarFilePoolTest
+{
+	private static final String DUMMY_CLASS_1 = DummyClass1.class.getName().replace(".", "/") + ".class";
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private File jar1;
+	private File jar2;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		jar1 = createJar(new File(parentDir, "jar1.jar"));
+		jar2 = createJar(new File(parentDir, "jar2.jar"));
+	}
+
+	private File createJar(File file) throws IOException
+	{
+		JarCreater.createJar(file, Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(DummyClass1.class.getPackage().getName().replace(".", "/"), "DummyClass1.class", getClass().getClassLoader().getResource(DUMMY_CLASS_1))));
+		return file;
+	}
+
+	private static void assertClosed(JarFilePool.Handle handle)
+	{
+		try
+		{
+			handle.getJarFile().getEntry(DUMMY_CLASS_1);
+			fail("Expected the jar file to be closed.");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws IOException
+	{
+		JarFilePool pool = new JarFilePool(1);
+		JarFilePool.Handle handle1 = pool.acquire(jar1);
+		pool.release(handle1);
+		JarFilePool.Handle handle2 = pool.acquire(jar2);
+		assertEquals(1, pool.size());
+		assertClosed(handle1);
+		assertNotNull(handle2.getJarFile().getEntry(DUMMY_CLASS_1));
+		pool.release(handle2);
+	}
+
+	@Test
+	public void testEvictedHandleStaysOpenUntilReleased() throws IOException
+	{
+		JarFilePool pool = new JarFilePool(1);
+		JarFilePool.Handle handle1 = pool.acquire(jar1);
+		pool.release(pool.acquire(jar2));
+		assertNotNull(handle1.getJarFile().getEntry(DUMMY_CLASS_1));
+		pool.release(handle1);
+		assertClosed(handle1);
+	}
+
+	@Test
+	public void testSharesOpenHandles() throws IOException
+	{
+		JarFilePool pool = new JarFilePool(1);
+		JarFilePool.Handle handle1 = pool.acquire(jar1);
+		JarFilePool.Handle handle2 = pool.acquire(jar1);
+		assertTrue(handle1 == handle2);
+		pool.release(handle1);
+		pool.release(handle2);
+		pool.closeAll();
+		assertEquals(0, pool.size());
+		assertClosed(handle1);
+	}
+
+	@Test
+	public void testAtLeastOneJarIsKeptOpen() throws IOException
+	{
+		try
+		{
+			new JarFilePool(0);
+			fail("Expected IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		JarFilePool pool = new JarFilePool(1);
+		JarFilePool.Handle handle = pool.acquire(jar1);
+		assertNotNull(handle.getJarFile().getEntry(DUMMY_CLASS_1));
+		pool.release(handle);
+	}
+}
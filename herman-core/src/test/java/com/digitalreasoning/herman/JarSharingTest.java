@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JarSharingTest
+{
+	private static final String TEST_PACKAGE = "META-INF/isolated/test.package.Service";
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private File library;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		tmpdir.getDir().mkdirs();
+		library = new File(tmpdir.getDir(), "library-1.0.jar");
+		String dummyClass = DummyClass1.class.getName().replace(".", "/") + ".class";
+		JarCreater.createJar(library, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(DummyClass1.class.getPackage().getName().replace(".", "/"),
+				"DummyClass1.class", getClass().getClassLoader().getResource(dummyClass))));
+	}
+
+	/*
+	 * An outer jar holding the library, with an index that gives the library the given digest if there is one.
+	 */
+	private URL createPlugin(String name, String sha1) throws IOException
+	{
+		File outerJar = new File(tmpdir.getDir(), name + ".jar");
+		List<JarCreater.Entry> entries = Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, library.getName(), library.toURI().toURL()));
+		JarCreater.createJar(outerJar, entries);
+		if (sha1 != null)
+		{
+			String entryName = TEST_PACKAGE + "/" + library.getName();
+			ZipDirectory directory = ZipDirectory.map(outerJar);
+			int entry = directory.indexOf(entryName);
+			File index = new File(tmpdir.getDir(), name + "-" + IsolatedIndex.INDEX_NAME);
+			FileUtils.writeStringToFile(index, IsolatedIndex.VERSION_LINE + "\n" + entryName + "\t" + directory.getLocalHeaderOffset(entry) + "\t"
+					+ directory.getCompressedSize(entry) + "\t" + directory.getSize(entry) + "\t" + Long.toHexString(directory.getCrc(entry)) + "\t"
+					+ sha1 + "\n", Charset.forName("UTF-8"));
+			List<JarCreater.Entry> indexedEntries = new ArrayList<JarCreater.Entry>(entries);
+			indexedEntries.add(new JarCreater.Entry(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX, IsolatedIndex.INDEX_NAME, index.toURI().toURL()));
+			JarCreater.createJar(outerJar, indexedEntries);
+		}
+		return outerJar.toURI().toURL();
+	}
+
+	private Map<URL, JarSharing.Shared> plan(URL... plugins) throws IOException
+	{
+		Map<URL, List<URL>> serviceJars = new LinkedHashMap<URL, List<URL>>();
+		for (URL plugin : plugins)
+		{
+			serviceJars.putAll(new ResourceFinder(new URLClassLoader(new URL[] { plugin })).getNestedJars(TEST_PACKAGE));
+		}
+		return new JarSharing(new String[] { "library-*.jar" }).plan(serviceJars);
+	}
+
+	@Test
+	public void testIdenticalJarsAreShared() throws IOException
+	{
+		Map<URL, JarSharing.Shared> plan = plan(createPlugin("plugin1", null), createPlugin("plugin2", null));
+		assertEquals(2, plan.size());
+		assertTrue(plan.values().iterator().next().getOwnJars().isEmpty());
+	}
+
+	@Test
+	public void testDigestsAreTakenFromTheIndex() throws IOException
+	{
+		// the copies are identical, but the indexes say otherwise - so they can only have been compared by what the indexes say
+		String first = "1111111111111111111111111111111111111111";
+		String second = "2222222222222222222222222222222222222222";
+		assertTrue(plan(createPlugin("plugin1", first), createPlugin("plugin2", second)).isEmpty());
+		assertEquals(2, plan(createPlugin("plugin3", first), createPlugin("plugin4", first)).size());
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MissCacheTest
+{
+	@Test
+	public void testOldestMissesAreEvicted()
+	{
+		MissCache cache = new MissCache(2);
+		cache.add("a", cache.generation());
+		cache.add("b", cache.generation());
+		cache.add("c", cache.generation());
+		assertFalse(cache.contains("a"));
+		assertTrue(cache.contains("b"));
+		assertTrue(cache.contains("c"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testMissesFromBeforeAClearAreIgnored()
+	{
+		MissCache cache = new MissCache(2);
+		int generation = cache.generation();
+		cache.add("a", generation);
+		cache.clear();
+		assertFalse(cache.contains("a"));
+		cache.add("b", generation);
+		assertFalse(cache.contains("b"));
+	}
+
+	@Test
+	public void testLoaderRemembersMisses() throws Exception
+	{
+		final AtomicInteger classLookups = new AtomicInteger();
+		final AtomicInteger resourceLookups = new AtomicInteger();
+		ClassLoader parent = new ClassLoader(getClass().getClassLoader())
+		{
+			@Override
+			protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException
+			{
+				if (name.startsWith("com.example."))
+				{
+					classLookups.incrementAndGet();
+				}
+				return super.loadClass(name, resolve);
+			}
+
+			@Override
+			public URL getResource(final String name)
+			{
+				if (name.startsWith("com/example/"))
+				{
+					resourceLookups.incrementAndGet();
+				}
+				return super.getResource(name);
+			}
+		};
+		HermanClassLoader loader = new HermanClassLoader(new URL[0], parent, new URL("file:/isolated/"), new String[0], new String[0]);
+		for (int i = 0; i < 3; i++)
+		{
+			try
+			{
+				loader.loadClass("com.example.Optional");
+				fail("Class shouldn't exist.");
+			}
+			catch (ClassNotFoundException e)
+			{
+				assertEquals("com.example.Optional", e.getMessage());
+			}
+			assertNull(loader.getResource("com/example/optional.properties"));
+		}
+		assertEquals(1, classLookups.get());
+		assertEquals(1, resourceLookups.get());
+	}
+
+	@Test
+	public void testFailuresToReadAreNotRemembered() throws Exception
+	{
+		final AtomicInteger finds = new AtomicInteger();
+		HermanClassLoader loader = new HermanClassLoader(new URL[0], getClass().getClassLoader(), new URL("file:/isolated/"), new String[0], new String[0])
+		{
+			@Override
+			protected Class<?> findClass(final String name) throws ClassNotFoundException
+			{
+				finds.incrementAndGet();
+				throw new ClassNotFoundException(name, new IOException("Couldn't read " + name));
+			}
+		};
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				loader.loadClass("com.example.Unreadable");
+				fail("Class shouldn't load.");
+			}
+			catch (ClassNotFoundException e)
+			{
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		assertEquals(2, finds.get());
+	}
+
+	@Test
+	public void testClassesDefinedAfterAMissAreFound() throws Exception
+	{
+		InjectingClassLoader loader = new InjectingClassLoader(getClass().getClassLoader().getParent());
+		try
+		{
+			loader.loadClass(DummyClass1.class.getName());
+			fail("Class shouldn't be visible yet.");
+		}
+		catch (ClassNotFoundException e)
+		{
+			// expected, and now remembered
+		}
+		// as a code generator would, inject the class that was just probed for
+		byte[] bytes = IOUtils.toByteArray(getClass().getClassLoader().getResource(DummyClass1.class.getName().replace('.', '/') + ".class"));
+		Class<?> defined = loader.inject(DummyClass1.class.getName(), bytes);
+		assertSame(defined, loader.loadClass(DummyClass1.class.getName()));
+	}
+
+	private static class InjectingClassLoader extends HermanClassLoader
+	{
+		private InjectingClassLoader(final ClassLoader parent) throws IOException
+		{
+			super(new URL[0], parent, new URL("file:/isolated/"), new String[0], new String[0]);
+		}
+
+		private Class<?> inject(String name, byte[] bytes)
+		{
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PackageIndexTest
+{
+	private static final String TEST_PACKAGE = "META-INF/isolated/test.package.Service";
+	private static final String DUMMY_CLASS_1 = DummyClass1.class.getName().replace(".", "/") + ".class";
+
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private List<URL> jarUrls;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		// a.jar and c.jar both have DummyClass1, so resources can be told apart by jar.
+		File a = createJar("a.jar", DummyClass1.class);
+		File b = createJar("b.jar", DummyService.class, DummyProvider.class);
+		File c = createJar("c.jar", DummyClass2.class, DummyClass1.class);
+		File outerJar = new File(parentDir, "outer.jar");
+		JarCreater.createJar(outerJar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, "a.jar", a.toURI().toURL()),
+				new JarCreater.Entry(TEST_PACKAGE, "b.jar", b.toURI().toURL()), new JarCreater.Entry(TEST_PACKAGE, "c.jar", c.toURI().toURL())), true);
+		Map<URL, List<URL>> nestedJars = new ResourceFinder(new URLClassLoader(new URL[] { outerJar.toURI().toURL() })).getNestedJars(TEST_PACKAGE);
+		jarUrls = nestedJars.values().iterator().next();
+		assertEquals(3, jarUrls.size());
+	}
+
+	private File createJar(String name, Class<?>... classes) throws IOException
+	{
+		List<JarCreater.Entry> entries = new ArrayList<JarCreater.Entry>();
+		for (Class<?> clazz : classes)
+		{
+			String resource = clazz.getName().replace(".", "/") + ".class";
+			entries.add(new JarCreater.Entry(clazz.getPackage().getName().replace(".", "/"), clazz.getSimpleName() + ".class",
+					getClass().getClassLoader().getResource(resource)));
+		}
+		File jar = new File(tmpdir.getDir(), "jars/" + name);
+		JarCreater.createJar(jar, entries);
+		return jar;
+	}
+
+	private File createJar(String name, String manifest, Class<?>... classes) throws IOException
+	{
+		File manifestFile = new File(tmpdir.getDir(), name + ".MF");
+		FileUtils.writeStringToFile(manifestFile, "Manifest-Version: 1.0\n" + manifest + "\n", "UTF-8");
+		List<JarCreater.Entry> entries = new ArrayList<JarCreater.Entry>();
+		entries.add(new JarCreater.Entry("META-INF", "MANIFEST.MF", manifestFile.toURI().toURL()));
+		for (Class<?> clazz : classes)
+		{
+			String resource = clazz.getName().replace(".", "/") + ".class";
+			entries.add(new JarCreater.Entry(clazz.getPackage().getName().replace(".", "/"), clazz.getSimpleName() + ".class",
+					getClass().getClassLoader().getResource(resource)));
+		}
+		File jar = new File(tmpdir.getDir(), "jars/" + name);
+		JarCreater.createJar(jar, entries);
+		return jar;
+	}
+
+	private HermanClassLoader createLoader()
+	{
+		URL[] urls = jarUrls.toArray(new URL[jarUrls.size()]);
+		return new HermanClassLoader(urls, getClass().getClassLoader().getParent(), urls[0], new String[0], new String[0]);
+	}
+
+	@Test
+	public void testClassesAreDefinedFromTheJarThatHasThem() throws Exception
+	{
+		HermanClassLoader loader = createLoader();
+		Class<?> clazz = loader.loadClass(DummyClass2.class.getName());
+		assertSame(loader, clazz.getClassLoader());
+		assertEquals(jarUrls.get(2), clazz.getProtectionDomain().getCodeSource().getLocation());
+		assertNotNull(clazz.getPackage());
+		assertEquals(DummyClass2.class.getPackage().getName(), clazz.getPackage().getName());
+
+		// the first jar on the path wins, as with any url class loader.
+		assertEquals(jarUrls.get(0), loader.loadClass(DummyClass1.class.getName()).getProtectionDomain().getCodeSource().getLocation());
+		try
+		{
+			loader.loadClass(DummyClass1.class.getPackage().getName() + ".DoesNotExist");
+			fail("Expected ClassNotFoundException");
+		}
+		catch (ClassNotFoundException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testResourcesAreFoundInEveryJarThatHasThem() throws Exception
+	{
+		HermanClassLoader loader = createLoader();
+		List<URL> resources = Collections.list(loader.getResources(DUMMY_CLASS_1));
+		assertEquals(Arrays.asList(new URL(jarUrls.get(0), DUMMY_CLASS_1), new URL(jarUrls.get(2), DUMMY_CLASS_1)), resources);
+		assertEquals(resources.get(0), loader.getResource(DUMMY_CLASS_1));
+		assertNull(loader.getResource("does/not/Exist.class"));
+
+		InputStream expected = getClass().getClassLoader().getResourceAsStream(DUMMY_CLASS_1);
+		InputStream actual = loader.getResourceAsStream(DUMMY_CLASS_1);
+		try
+		{
+			assertArrayEquals(IOUtils.toByteArray(expected), IOUtils.toByteArray(actual));
+		}
+		finally
+		{
+			expected.close();
+			actual.close();
+		}
+	}
+
+	@Test
+	public void testDirectoriesFallBackToTheUrlSearch() throws Exception
+	{
+		File classes = new File(tmpdir.getDir(), "classes");
+		File classFile = new File(classes, DUMMY_CLASS_1);
+		classFile.getParentFile().mkdirs();
+		FileUtils.copyURLToFile(getClass().getClassLoader().getResource(DUMMY_CLASS_1), classFile);
+		URL[] urls = { classes.toURI().toURL(), jarUrls.get(1) };
+		HermanClassLoader loader = new HermanClassLoader(urls, getClass().getClassLoader().getParent(), urls[0], new String[0], new String[0]);
+		assertEquals(urls[0], loader.loadClass(DummyClass1.class.getName()).getProtectionDomain().getCodeSource().getLocation());
+		assertSame(loader, loader.loadClass(DummyProvider.class.getName()).getClassLoader());
+	}
+
+	@Test
+	public void testManifestClassPathFallsBackToTheUrlSearch() throws Exception
+	{
+		createJar("dependency.jar", DummyClass1.class);
+		File main = createJar("main.jar", "Class-Path: dependency.jar", DummyProvider.class);
+		URL[] urls = { main.toURI().toURL() };
+		assertNull(PackageIndex.build(urls));
+		HermanClassLoader loader = new HermanClassLoader(urls, getClass().getClassLoader().getParent(), urls[0], new String[0], new String[0]);
+		assertSame(loader, loader.loadClass(DummyClass1.class.getName()).getClassLoader());
+	}
+
+	@Test(expected = SecurityException.class)
+	public void testAnUnsealedPackageCannotBeSealedLater() throws Exception
+	{
+		File unsealed = createJar("unsealed.jar", DummyClass1.class);
+		File sealed = createJar("sealed.jar", "Sealed: true", DummyClass2.class);
+		URL[] urls = { unsealed.toURI().toURL(), sealed.toURI().toURL() };
+		HermanClassLoader loader = new HermanClassLoader(urls, getClass().getClassLoader().getParent(), urls[0], new String[0], new String[0]);
+		assertNotNull(PackageIndex.build(urls));
+		loader.loadClass(DummyClass1.class.getName());
+		loader.loadClass(DummyClass2.class.getName());
+	}
+
+	@Test
+	public void testClosedLoaderDefinesNothingMore() throws Exception
+	{
+		HermanClassLoader loader = createLoader();
+		assertSame(loader, loader.loadClass(DummyClass2.class.getName()).getClassLoader());
+		loader.close();
+		try
+		{
+			loader.loadClass(DummyClass1.class.getName());
+			fail("Expected ClassNotFoundException from a closed loader");
+		}
+		catch (ClassNotFoundException e)
+		{
+			// expected
+		}
+		assertNull(loader.findResource(DUMMY_CLASS_1));
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrefixMatcherTest
+{
+	@Test
+	public void testNoFiltersIncludesEverything()
+	{
+		PrefixMatcher matcher = PrefixMatcher.compile(null, new String[0]);
+		assertTrue(matcher.isIncluded("com.example.Foo", false));
+		assertTrue(matcher.isIncluded("", true));
+	}
+
+	@Test
+	public void testIncludes()
+	{
+		PrefixMatcher matcher = PrefixMatcher.compile(new String[] { "com.example.api.*", "org.other" }, null);
+		assertTrue(matcher.isIncluded("com.example.api.Foo", false));
+		assertTrue(matcher.isIncluded("org.otherthing.Bar", false));
+		assertFalse(matcher.isIncluded("com.example.impl.Foo", false));
+		assertFalse(matcher.isIncluded("com.example.ap", false));
+	}
+
+	@Test
+	public void testExcludesWinOverIncludes()
+	{
+		PrefixMatcher matcher = PrefixMatcher.compile(new String[] { "com.example." }, new String[] { "com.example.api.internal.", "com.example.Secret" });
+		assertTrue(matcher.isIncluded("com.example.api.Foo", false));
+		assertFalse(matcher.isIncluded("com.example.api.internal.Foo", false));
+		assertFalse(matcher.isIncluded("com.example.SecretThing", false));
+		assertFalse(matcher.isIncluded("com.other.Foo", false));
+
+		PrefixMatcher excludesOnly = PrefixMatcher.compile(new String[0], new String[] { "com.example.*" });
+		assertFalse(excludesOnly.isIncluded("com.example.Foo", false));
+		assertTrue(excludesOnly.isIncluded("com.other.Foo", false));
+	}
+
+	@Test
+	public void testResourceNames()
+	{
+		PrefixMatcher matcher = PrefixMatcher.compile(new String[] { "com.example.api." }, new String[] { "com.example.api.internal" });
+		assertTrue(matcher.isIncluded("com/example/api/Foo.class", true));
+		assertFalse(matcher.isIncluded("com/example/api/internal/Foo.class", true));
+		assertFalse("A '.' in a resource name is not a package separator.", matcher.isIncluded("com.example.api.properties", true));
+		assertFalse("A '/' in a class name is not a package separator.", matcher.isIncluded("com/example/api/Foo", false));
+	}
+}
@@ -17,18 +17,26 @@ package com.digitalreasoning.herman;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.peachjean.commons.test.junit.TmpDir;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ResourceFinderTest
@@ -37,6 +45,8 @@ public class ResourceFinderTest
 	public TmpDir tmpdir = new TmpDir();
 
 	private ResourceFinder underTest;
+	private File jarFile1;
+	private File combJar;
 	private static final String TEST_PACKAGE = "META-INF/isolated/test.package.Service";
 
 	@Before
@@ -44,8 +54,8 @@ public class ResourceFinderTest
 	{
 		File parentDir = tmpdir.getDir();
 		parentDir.mkdirs();
-		File jarFile1 = new File(parentDir, "example1.jar");
-		File combJar = new File(parentDir, "combinedJar.jar");
+		jarFile1 = new File(parentDir, "example1.jar");
+		combJar = new File(parentDir, "combinedJar.jar");
 		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 		List<JarCreater.Entry> entries = Arrays.<JarCreater.Entry> asList(
 		                                                                  new JarCreater.Entry(DummyClass2.class.getPackage().getName().replace(".", "/"), "DummyClass2.class", classLoader.getResource(DummyClass2.class.getName().replace(".", "/") + ".class")), 
@@ -68,4 +78,127 @@ public class ResourceFinderTest
 		Class<?> clazz = classLoader.loadClass(DummyClass1.class.getName());
 		assertTrue(clazz.getClassLoader() == classLoader);
 	}
+
+	private ResourceFinder createIndexedFinder(int offsetAdjustment) throws IOException
+	{
+		File indexedJar = new File(tmpdir.getDir(), "indexedJar.jar");
+		List<JarCreater.Entry> entries = Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(TEST_PACKAGE, "example1.jar", jarFile1.toURI().toURL()),
+				new JarCreater.Entry(TEST_PACKAGE, "example2.jar", jarFile1.toURI().toURL()));
+		JarCreater.createJar(indexedJar, entries);
+
+		// only list the first jar, so that we can tell the index was used rather than a scan.
+		String name = TEST_PACKAGE + "/example1.jar";
+		ZipDirectory directory = ZipDirectory.map(indexedJar);
+		int entry = directory.indexOf(name);
+		File index = new File(tmpdir.getDir(), IsolatedIndex.INDEX_NAME);
+		FileUtils.writeStringToFile(index, IsolatedIndex.VERSION_LINE + "\n" + name + "\t" + (directory.getLocalHeaderOffset(entry) + offsetAdjustment) + "\t"
+				+ directory.getCompressedSize(entry) + "\t" + directory.getSize(entry) + "\t" + Long.toHexString(directory.getCrc(entry)) + "\t"
+				+ "0000000000000000000000000000000000000000\n", Charset.forName("UTF-8"));
+
+		List<JarCreater.Entry> indexedEntries = new ArrayList<JarCreater.Entry>(entries);
+		indexedEntries.add(new JarCreater.Entry(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX, IsolatedIndex.INDEX_NAME, index.toURI().toURL()));
+		JarCreater.createJar(indexedJar, indexedEntries);
+		return new ResourceFinder(new URLClassLoader(new URL[] {indexedJar.toURI().toURL()}));
+	}
+
+	@Test
+	public void testReadsIndex() throws IOException
+	{
+		Map<URL, List<URL>> files = createIndexedFinder(0).getNestedJars(TEST_PACKAGE);
+		List<URL> urls = files.values().iterator().next();
+		assertEquals(1, urls.size());
+		assertTrue(urls.get(0).toString().endsWith("example1.jar" + HermanUrlStreamHandler.HERMAN_SEPARATOR));
+	}
+
+	@Test
+	public void testStaleIndexIsScanned() throws IOException
+	{
+		Map<URL, List<URL>> files = createIndexedFinder(1).getNestedJars(TEST_PACKAGE);
+		assertEquals(2, files.values().iterator().next().size());
+	}
+
+	@Test
+	public void testGetNestedJarsByDirectory() throws IOException
+	{
+		Map<String, Map<URL, List<URL>>> directories = underTest.getNestedJarsByDirectory(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX);
+		assertEquals(1, directories.size());
+		assertEquals(underTest.getNestedJars(TEST_PACKAGE), directories.get(TEST_PACKAGE.substring(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX.length())));
+	}
+
+	@Test
+	public void testDiscoveryIsCachedUntilTheJarChanges() throws IOException
+	{
+		Map<URL, List<URL>> files = underTest.getNestedJars(TEST_PACKAGE);
+		assertSame(files, underTest.getNestedJars(TEST_PACKAGE));
+
+		JarCreater.createJar(combJar, Arrays.<JarCreater.Entry> asList(
+				new JarCreater.Entry(TEST_PACKAGE, "example1.jar", jarFile1.toURI().toURL()),
+				new JarCreater.Entry(TEST_PACKAGE, "example2.jar", jarFile1.toURI().toURL())));
+		assertEquals(2, underTest.getNestedJars(TEST_PACKAGE).values().iterator().next().size());
+	}
+
+	@Test
+	public void testDiscoveryFindsLocationsAddedLater() throws IOException
+	{
+		File otherJar = new File(tmpdir.getDir(), "otherJar.jar");
+		JarCreater.createJar(otherJar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, "example1.jar", jarFile1.toURI().toURL())));
+		GrowingClassLoader classLoader = new GrowingClassLoader(combJar.toURI().toURL());
+		ResourceFinder finder = new ResourceFinder(classLoader);
+		assertEquals(1, finder.getNestedJars(TEST_PACKAGE).size());
+
+		classLoader.addURL(otherJar.toURI().toURL());
+		assertEquals(2, finder.getNestedJars(TEST_PACKAGE).size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testDiscoveredJarsCannotBeChanged() throws IOException
+	{
+		underTest.getNestedJars(TEST_PACKAGE).values().iterator().next().clear();
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testDiscoveredDirectoriesCannotBeChanged() throws IOException
+	{
+		underTest.getNestedJarsByDirectory(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX).values().iterator().next().clear();
+	}
+
+	private static class GrowingClassLoader extends URLClassLoader
+	{
+		private GrowingClassLoader(final URL url)
+		{
+			super(new URL[] {url});
+		}
+
+		@Override
+		public void addURL(final URL url)
+		{
+			super.addURL(url);
+		}
+	}
+
+	@Test
+	public void testParallelDiscoveryKeepsClassLoaderOrder() throws Exception
+	{
+		URL[] jars = new URL[8];
+		for (int i = 0; i < jars.length; i++)
+		{
+			File jar = new File(tmpdir.getDir(), "plugin" + i + ".jar");
+			JarCreater.createJar(jar, Arrays.<JarCreater.Entry> asList(new JarCreater.Entry(TEST_PACKAGE, "example1.jar", jarFile1.toURI().toURL())));
+			jars[i] = jar.toURI().toURL();
+		}
+		URLClassLoader classLoader = new URLClassLoader(jars);
+		List<URL> expected = Collections.list(classLoader.getResources(TEST_PACKAGE + "/"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			Map<URL, List<URL>> files = new ResourceFinder(classLoader, executor).getNestedJars(TEST_PACKAGE);
+			assertEquals(expected, new ArrayList<URL>(files.keySet()));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman.maven;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Indexes the nested jars under META-INF/isolated/ of the project's jar, so that herman can find them with one small read instead of walking
+ * every entry of the jar.  Bind it to the package phase after the jar has been built (and after anything else that rewrites the jar, such as the
+ * shade plugin - an index that no longer matches its jar is ignored).
+ *
+ * @goal index
+ * @phase package
+ */
+public class IndexMojo extends AbstractMojo
+{
+	/**
+	 * The jar to index.
+	 *
+	 * @parameter expression="${herman.index.jarFile}" default-value="${project.build.directory}/${project.build.finalName}.jar"
+	 * @required
+	 */
+	private File jarFile;
+
+	/**
+	 * @parameter expression="${herman.index.skip}" default-value="false"
+	 */
+	private boolean skip;
+
+	public void execute() throws MojoExecutionException
+	{
+		if (skip)
+		{
+			getLog().info("Skipping the herman index.");
+			return;
+		}
+		if (!jarFile.isFile())
+		{
+			throw new MojoExecutionException(jarFile + " does not exist.  The index goal has to run after the jar is packaged.");
+		}
+		File indexed = new File(jarFile.getPath() + ".indexed");
+		int count;
+		try
+		{
+			count = JarIndexer.index(jarFile, indexed);
+		}
+		catch (IOException e)
+		{
+			indexed.delete();
+			throw new MojoExecutionException("Failed to index " + jarFile, e);
+		}
+		replace(jarFile, indexed);
+		getLog().info("Indexed " + count + " isolated jars in " + jarFile);
+	}
+
+	/*
+	 * Moves the original out of the way rather than deleting it, so that it can be put back if the indexed copy can't take its place.
+	 */
+	private static void replace(File jarFile, File indexed) throws MojoExecutionException
+	{
+		File backup = new File(jarFile.getPath() + ".original");
+		backup.delete();
+		if (!jarFile.renameTo(backup))
+		{
+			indexed.delete();
+			throw new MojoExecutionException("Could not move " + jarFile + " aside to replace it with its indexed copy.");
+		}
+		if (!indexed.renameTo(jarFile))
+		{
+			if (!backup.renameTo(jarFile))
+			{
+				throw new MojoExecutionException("Could not replace " + jarFile + " with its indexed copy " + indexed + ", the original is in " + backup);
+			}
+			indexed.delete();
+			throw new MojoExecutionException("Could not replace " + jarFile + " with its indexed copy " + indexed);
+		}
+		backup.delete();
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman.maven;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.digitalreasoning.herman.IsolatedIndex;
+import com.digitalreasoning.herman.IsolatedServiceLoader;
+
+/**
+ * Copies a jar, appending an index of the nested jars under META-INF/isolated/ with their local header offsets, sizes and hashes.  The format is
+ * the one herman-core reads in IsolatedIndex - one tab separated line per nested jar after a version line.
+ */
+public class JarIndexer
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes an indexed copy of source to target, returning the number of nested jars indexed.  An index already in source is replaced.
+	 */
+	public static int index(File source, File target) throws IOException
+	{
+		ZipFile zip = new ZipFile(source);
+		try
+		{
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE));
+			ZipOutputStream out = new ZipOutputStream(counter);
+			try
+			{
+				StringBuilder index = new StringBuilder(IsolatedIndex.VERSION_LINE).append('\n');
+				int count = 0;
+				byte[] buffer = new byte[BUFFER_SIZE];
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements())
+				{
+					ZipEntry entry = entries.nextElement();
+					if (entry.getName().equals(IsolatedIndex.INDEX_PATH))
+					{
+						continue;
+					}
+					boolean nested = isNestedJar(entry);
+					MessageDigest digest = nested ? sha1() : null;
+					ZipEntry copy = copyOf(entry);
+					long offset = counter.getCount();
+					out.putNextEntry(copy);
+					InputStream input = zip.getInputStream(entry);
+					try
+					{
+						int n;
+						while ((n = input.read(buffer)) != -1)
+						{
+							out.write(buffer, 0, n);
+							if (digest != null)
+							{
+								digest.update(buffer, 0, n);
+							}
+						}
+					}
+					finally
+					{
+						input.close();
+					}
+					out.closeEntry();
+					if (nested)
+					{
+						index.append(copy.getName()).append('\t').append(offset).append('\t').append(copy.getCompressedSize()).append('\t')
+								.append(copy.getSize()).append('\t').append(Long.toHexString(copy.getCrc())).append('\t').append(toHex(digest.digest()))
+								.append('\n');
+						count++;
+					}
+				}
+				out.putNextEntry(new ZipEntry(IsolatedIndex.INDEX_PATH));
+				out.write(index.toString().getBytes(UTF_8));
+				out.closeEntry();
+				return count;
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	/*
+	 * A file directly inside a service directory - META-INF/isolated/<service>/<name>.  Discovery treats every such file as a nested jar whatever
+	 * it is called, so the index has to list them all to give the same answer as a scan.
+	 */
+	static boolean isNestedJar(ZipEntry entry)
+	{
+		String name = entry.getName();
+		if (entry.isDirectory() || !name.startsWith(IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX))
+		{
+			return false;
+		}
+		int serviceEnd = name.indexOf('/', IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX.length());
+		return serviceEnd > IsolatedServiceLoader.ISOLATED_INTERFACE_PREFIX.length() && name.indexOf('/', serviceEnd + 1) == -1;
+	}
+
+	private static ZipEntry copyOf(ZipEntry entry)
+	{
+		ZipEntry copy = new ZipEntry(entry.getName());
+		copy.setTime(entry.getTime());
+		copy.setExtra(entry.getExtra());
+		copy.setComment(entry.getComment());
+		copy.setMethod(entry.getMethod());
+		if (entry.getMethod() == ZipEntry.STORED)
+		{
+			copy.setSize(entry.getSize());
+			copy.setCompressedSize(entry.getCompressedSize());
+			copy.setCrc(entry.getCrc());
+		}
+		return copy;
+	}
+
+	private static MessageDigest sha1()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-1 is required to be supported by every JVM.", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		private long count;
+
+		CountingOutputStream(final OutputStream out)
+		{
+			super(out);
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		@Override
+		public void write(final int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
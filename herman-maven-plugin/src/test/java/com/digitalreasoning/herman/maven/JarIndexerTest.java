@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 Digital Reasoning Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalreasoning.herman.maven;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import net.peachjean.commons.test.junit.TmpDir;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.digitalreasoning.herman.IsolatedIndex;
+
+import static org.junit.Assert.assertEquals;
+
+public class JarIndexerTest
+{
+	@Rule
+	public TmpDir tmpdir = new TmpDir();
+
+	private File createJar() throws IOException
+	{
+		File parentDir = tmpdir.getDir();
+		parentDir.mkdirs();
+		File jar = new File(parentDir, "plugin.jar");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		try
+		{
+			addEntry(out, "com/example/Main.class", false);
+			addEntry(out, "META-INF/isolated/com.example.Service/", false);
+			addEntry(out, "META-INF/isolated/com.example.Service/deflated.jar", false);
+			addEntry(out, "META-INF/isolated/com.example.Service/stored.jar", true);
+			addEntry(out, "META-INF/isolated/com.example.Service/lib/too-deep.jar", false);
+			addEntry(out, "META-INF/isolated/com.example.Service/readme.txt", false);
+		}
+		finally
+		{
+			out.close();
+		}
+		return jar;
+	}
+
+	private static void addEntry(ZipOutputStream out, String name, boolean stored) throws IOException
+	{
+		byte[] content = name.endsWith("/") ? new byte[0] : ("content of " + name).getBytes("UTF-8");
+		ZipEntry entry = new ZipEntry(name);
+		if (stored)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(content.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(content);
+		out.closeEntry();
+	}
+
+	private static List<String[]> readIndex(File jar) throws IOException
+	{
+		ZipFile zip = new ZipFile(jar);
+		try
+		{
+			List<String> lines = IOUtils.readLines(zip.getInputStream(zip.getEntry(IsolatedIndex.INDEX_PATH)), "UTF-8");
+			assertEquals(IsolatedIndex.VERSION_LINE, lines.get(0));
+			List<String[]> entries = new ArrayList<String[]>();
+			for (String line : lines.subList(1, lines.size()))
+			{
+				entries.add(line.split("\t"));
+			}
+			return entries;
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+
+	@Test
+	public void testIndexesNestedJars() throws IOException
+	{
+		File jar = createJar();
+		File indexed = new File(jar.getParentFile(), "indexed.jar");
+		assertEquals(3, JarIndexer.index(jar, indexed));
+
+		List<String[]> entries = readIndex(indexed);
+		List<String> names = new ArrayList<String>();
+		ZipFile zip = new ZipFile(indexed);
+		RandomAccessFile file = new RandomAccessFile(indexed, "r");
+		try
+		{
+			for (String[] fields : entries)
+			{
+				names.add(fields[0]);
+				ZipEntry entry = zip.getEntry(fields[0]);
+				assertEquals(entry.getCompressedSize(), Long.parseLong(fields[2]));
+				assertEquals(entry.getSize(), Long.parseLong(fields[3]));
+				assertEquals(entry.getCrc(), Long.parseLong(fields[4], 16));
+				assertEquals(40, fields[5].length());
+
+				file.seek(Long.parseLong(fields[1]));
+				assertEquals("Offset should point at a local header.", 0x04034b50, Integer.reverseBytes(file.readInt()));
+				file.seek(Long.parseLong(fields[1]) + 26);
+				byte[] name = new byte[Short.reverseBytes(file.readShort())];
+				file.seek(Long.parseLong(fields[1]) + 30);
+				file.readFully(name);
+				assertEquals(fields[0], new String(name, "UTF-8"));
+			}
+		}
+		finally
+		{
+			file.close();
+			zip.close();
+		}
+		Collections.sort(names);
+		// every file directly in the service directory, as a scan would find them
+		assertEquals("[META-INF/isolated/com.example.Service/deflated.jar, META-INF/isolated/com.example.Service/readme.txt, "
+				+ "META-INF/isolated/com.example.Service/stored.jar]", names.toString());
+	}
+
+	@Test
+	public void testReindexingReplacesIndex() throws IOException
+	{
+		File jar = createJar();
+		File indexed = new File(jar.getParentFile(), "indexed.jar");
+		File reindexed = new File(jar.getParentFile(), "reindexed.jar");
+		JarIndexer.index(jar, indexed);
+		assertEquals(3, JarIndexer.index(indexed, reindexed));
+		assertEquals(3, readIndex(reindexed).size());
+
+		ZipFile zip = new ZipFile(reindexed);
+		try
+		{
+			assertEquals(7, zip.size());
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+}